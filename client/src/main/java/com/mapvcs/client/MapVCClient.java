@@ -1,12 +1,16 @@
 package com.mapvcs.client;
 
+import com.mapvcs.core.RegionFile;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
 import java.util.*;
 
 import static com.mapvcs.core.MapVCSProtocol.*;
@@ -16,16 +20,20 @@ import static com.mapvcs.core.MapVCSProtocol.*;
         description = "Minecraft Map Version Control System")
 public class MapVCClient implements Callable<Integer> {
 
-    @Option(names = {"-s", "--server"}, description = "Server address")
+    @Option(names = {"-s", "--server"}, description = "Server address, comma separated to fall back to replicas")
     private String serverAddress = "localhost:9090";
 
     @Option(names = {"-b", "--branch"}, description = "Branch name")
     private String branch = "main";
 
+    @Option(names = "--stats", description = "Print time, bytes and throughput per phase after the command")
+    private boolean stats;
+
     @Parameters(index = "0", description = "Minecraft world directory")
     private File worldDir;
 
     private MapVCSService service;
+    private OperationProfiler profiler;
 
     public static void main(String[] args) {
         int exitCode = new CommandLine(new MapVCClient()).execute(args);
@@ -38,6 +46,16 @@ public class MapVCClient implements Callable<Integer> {
                 throw new IOException("Invalid Minecraft world directory. Missing level.dat file.");
             }
             service = new MapVCSService(serverAddress, worldDir, branch);
+            // 在终端中运行时显示实时进度
+            profiler = new OperationProfiler(System.console() != null);
+            service.setProfiler(profiler);
+        }
+    }
+
+    private void printStats() {
+        if (stats && profiler != null) {
+            System.out.println();
+            System.out.print(profiler.report());
         }
     }
 
@@ -59,7 +77,7 @@ public class MapVCClient implements Callable<Integer> {
         return 0;
     }
 
-    @Command(name = "push", description = "Push local changes to server (local operation only)")
+    @Command(name = "push", description = "Push local changes to server (localhost only)")
     public void push(
             @Option(names = {"-m", "--message"}, description = "Commit message", required = true) String message,
             @Option(names = {"-a", "--author"}, description = "Author name", required = true) String author
@@ -75,6 +93,8 @@ public class MapVCClient implements Callable<Integer> {
         } catch (Exception e) {
             System.err.println("Push failed: " + e.getMessage());
             e.printStackTrace();
+        } finally {
+            printStats();
         }
     }
 
@@ -92,6 +112,157 @@ public class MapVCClient implements Callable<Integer> {
             }
         } catch (Exception e) {
             System.err.println("Pull failed: " + e.getMessage());
+        } finally {
+            printStats();
+        }
+    }
+
+    @Command(name = "checkout", description = "Restore the world to a commit, transferring only the difference")
+    public void checkout(
+            @Parameters(index = "0", description = "Commit ID to check out") String commitId,
+            @Option(names = {"-f", "--force"}, description = "Discard uncommitted changes in the world") boolean force
+    ) {
+        try {
+            initService();
+            List<String> updatedFiles = service.checkout(commitId, force);
+            System.out.println("Checked out " + commitId);
+            System.out.println("Updated files: " + updatedFiles);
+        } catch (Exception e) {
+            System.err.println("Checkout failed: " + e.getMessage());
+        } finally {
+            printStats();
+        }
+    }
+
+    @Command(name = "daemon", description = "Watch the world and commit changed files at intervals (local operation only)")
+    public void daemon(
+            @Option(names = {"-i", "--interval"}, description = "Seconds between snapshots", defaultValue = "600") long interval,
+            @Option(names = {"-d", "--debounce"}, description = "Seconds without writes before snapshotting", defaultValue = "5") long debounce,
+            @Option(names = {"-a", "--author"}, description = "Author name", defaultValue = "mapvcs-daemon") String author,
+            @Option(names = "--save-off-cmd", description = "Command run before each snapshot, e.g. to send save-off/save-all") String saveOffCommand,
+            @Option(names = "--save-on-cmd", description = "Command run after each snapshot, e.g. to send save-on") String saveOnCommand
+    ) {
+        try {
+            initService();
+            if (!service.isLocalConnection()) {
+                System.err.println("Push operations are only allowed from localhost");
+                return;
+            }
+            SnapshotDaemon.SaveHook hook = saveOffCommand != null || saveOnCommand != null
+                    ? new SnapshotDaemon.CommandSaveHook(saveOffCommand, saveOnCommand) : null;
+            try (SnapshotDaemon daemon = new SnapshotDaemon(service, worldDir,
+                    interval * 1000, debounce * 1000, author, hook)) {
+                System.out.println("Watching " + worldDir.getAbsolutePath() + ", snapshot every " + interval + "s");
+                daemon.run();
+            }
+        } catch (Exception e) {
+            System.err.println("Daemon failed: " + e.getMessage());
+        }
+    }
+
+    @Command(name = "status", description = "Show local changes since the current commit")
+    public void status() {
+        try {
+            initService();
+            List<FileChange> changes = service.status();
+            System.out.println("On commit " + service.getCurrentCommitId());
+            printChanges(changes);
+        } catch (Exception e) {
+            System.err.println("Status failed: " + e.getMessage());
+        } finally {
+            printStats();
+        }
+    }
+
+    @Command(name = "diff", description = "Compare the local world with a server commit")
+    public void diff(
+            @Parameters(index = "0", arity = "0..1", description = "Commit ID, defaults to the branch head") String commitId
+    ) {
+        try {
+            initService();
+            printChanges(service.diff(commitId));
+        } catch (Exception e) {
+            System.err.println("Diff failed: " + e.getMessage());
+        } finally {
+            printStats();
+        }
+    }
+
+    private void printChanges(List<FileChange> changes) {
+        if (changes.isEmpty()) {
+            System.out.println("No changes");
+            return;
+        }
+        for (FileChange change : changes) {
+            System.out.printf("%-8s %s (%d bytes)\n", change.getChangeType(), change.getPath(), change.getBytesChanged());
+            if (change.getChunks() == null || change.getChunks().isEmpty()) continue;
+
+            // 输出世界坐标系下的区块坐标
+            int[] region = RegionFile.regionCoords(change.getPath());
+            StringBuilder chunks = new StringBuilder();
+            for (int index : change.getChunks()) {
+                chunks.append(" (").append(region[0] * 32 + index % 32)
+                        .append(",").append(region[1] * 32 + index / 32).append(")");
+            }
+            System.out.println("         chunks:" + chunks);
+        }
+    }
+
+    @Command(name = "watch", description = "Wait for branch updates pushed by the server")
+    public void watch(
+            @Option(names = {"-p", "--pull"}, description = "Pull automatically when the branch head moves") boolean autoPull
+    ) {
+        try {
+            initService();
+            // 通知在网络线程上到达，拉取放到当前线程执行
+            BlockingQueue<Optional<BranchUpdate>> updates = new LinkedBlockingQueue<>();
+            Consumer<BranchUpdate> listener = update -> updates.add(Optional.ofNullable(update));
+            service.watchBranch(listener);
+            System.out.println("Watching branch " + branch + " on " + serverAddress);
+
+            while (true) {
+                Optional<BranchUpdate> update = updates.take();
+                if (!update.isPresent()) {
+                    System.err.println("Connection lost, resubscribing in 5 seconds");
+                    Thread.sleep(5000);
+                    try {
+                        service.watchBranch(listener);
+                    } catch (Exception e) {
+                        updates.add(Optional.empty());
+                    }
+                    continue;
+                }
+
+                String head = update.get().getHeadCommit();
+                if (head == null || head.equals(service.getCurrentCommitId())) continue;
+                System.out.println("Branch " + branch + " moved to " + head);
+
+                if (autoPull) {
+                    PullResult result = service.pullUpdates();
+                    if (result.hasUpdates()) {
+                        System.out.println("Pulled " + result.getNewCommitId() + ", updated files: " + result.getUpdatedFiles());
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("Watch failed: " + e.getMessage());
+        }
+    }
+
+    @Command(name = "prefetch", description = "Download new commits of the branch in the background so that pull applies local data")
+    public void prefetch(
+            @Option(names = {"-r", "--rate"}, description = "Download limit in KB/s, 0 for unlimited", defaultValue = "1024") long rate
+    ) {
+        try {
+            initService();
+            try (Prefetcher prefetcher = new Prefetcher(service, serverAddress, rate * 1024)) {
+                prefetcher.start();
+                System.out.println("Prefetching branch " + branch + " from " + serverAddress
+                        + (rate > 0 ? " at up to " + rate + " KB/s" : ""));
+                prefetcher.join();
+            }
+        } catch (Exception e) {
+            System.err.println("Prefetch failed: " + e.getMessage());
         }
     }
 
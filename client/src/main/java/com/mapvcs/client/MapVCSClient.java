@@ -7,24 +7,57 @@ import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
 import io.netty.util.AttributeKey;
 
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 
 public class MapVCSClient implements AutoCloseable {
-    private final String serverAddress;
-    private final int port;
+    private final List<InetSocketAddress> endpoints = new ArrayList<>();
+    private int currentEndpoint;
     private Channel channel;
     private final EventLoopGroup group;
     private static final AttributeKey<MapVCSClient> CLIENT_KEY = AttributeKey.newInstance("client");
+    private static final long RESPONSE_TIMEOUT = 60000;
+    private volatile Consumer<BranchUpdate> branchListener;
+    private volatile long lastActivity;
+    private volatile OperationProfiler profiler = new OperationProfiler(false);
+    private final long readLimit;
 
+    // 每个连接各自的响应，同一进程中可能有多个客户端（例如预取进程的通知连接和下载连接）
+    private volatile PullResult lastPullResult;
+    private volatile List<Commit> lastHistory;
+    private volatile CheckoutResponse lastCheckout;
+    private volatile TreeResponse lastTree;
+    private volatile PushResponse lastPush;
+    private volatile String lastError;
 
+
+    // 支持逗号分隔的多个服务器地址（主服务器和只读副本），连接失败时依次尝试下一个
     public MapVCSClient(String serverAddress) {
-        String[] parts = serverAddress.split(":");
-        this.serverAddress = parts[0];
-        this.port = parts.length > 1 ? Integer.parseInt(parts[1]) : 9090;
-        this.group = new NioEventLoopGroup();
+        this(serverAddress, 0, null);
+    }
+
+    // readLimit为接收限速（字节/秒），0表示不限；threadFactory用于创建网络线程，例如后台预取使用低优先级线程
+    public MapVCSClient(String serverAddress, long readLimit, ThreadFactory threadFactory) {
+        for (String address : serverAddress.split(",")) {
+            String[] parts = address.trim().split(":");
+            int port = parts.length > 1 ? Integer.parseInt(parts[1]) : 9090;
+            endpoints.add(InetSocketAddress.createUnresolved(parts[0], port));
+        }
+        this.readLimit = readLimit;
+        this.group = threadFactory != null ? new NioEventLoopGroup(1, threadFactory) : new NioEventLoopGroup();
+    }
+
+    public void setProfiler(OperationProfiler profiler) {
+        this.profiler = profiler;
     }
 
     public void connect() throws InterruptedException {
@@ -36,6 +69,10 @@ public class MapVCSClient implements AutoCloseable {
                     protected void initChannel(SocketChannel ch) {
                         ch.attr(CLIENT_KEY).set(MapVCSClient.this);
 
+                        // 超过限速时暂停读取，服务器按通道可写状态发送，不会因此堆积数据
+                        if (readLimit > 0) {
+                            ch.pipeline().addLast(new ChannelTrafficShapingHandler(0, readLimit));
+                        }
                         ch.pipeline().addLast(
                                 new MapVCSDecoder(),
                                 new MapVCSEncoder(),
@@ -44,10 +81,26 @@ public class MapVCSClient implements AutoCloseable {
                     }
                 });
 
-        channel = b.connect(serverAddress, port).sync().channel();
+        Exception failure = null;
+        for (int i = 0; i < endpoints.size(); i++) {
+            int index = (currentEndpoint + i) % endpoints.size();
+            InetSocketAddress endpoint = endpoints.get(index);
+            try {
+                channel = b.connect(endpoint.getHostString(), endpoint.getPort()).sync().channel();
+                currentEndpoint = index;
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                System.err.println("Failed to connect to " + endpoint.getHostString() + ":" + endpoint.getPort()
+                        + ": " + e.getMessage());
+                failure = e;
+            }
+        }
+        throw new ChannelException("No reachable server", failure);
     }
 
-    public PullResult pull(String branch, String sinceCommit) throws Exception {
+    public PullResult pull(String branch, String sinceCommit, String localRoot, boolean acceptDelta) throws Exception {
         if (channel == null || !channel.isActive()) {
             connect();
         }
@@ -55,19 +108,25 @@ public class MapVCSClient implements AutoCloseable {
         PullRequest request = new PullRequest();
         request.setBranch(branch);
         request.setSinceCommit(sinceCommit);
+        request.setLocalRoot(localRoot);
+        request.setAcceptDelta(acceptDelta);
+        request.setAcceptSections(true);
 
-        channel.writeAndFlush(request);
+        lastPullResult = null;
+        lastError = null;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.NETWORK)) {
+            channel.writeAndFlush(request);
 
-        // 等待响应
-        synchronized (this) {
-            wait(5000); // 等待5秒
-        }
+            // 等待响应
+            waitForResponse(() -> lastPullResult != null);
 
-        PullResult result = ClientHandler.lastPullResult;
-        if (result == null) {
-            throw new Exception("No response from server");
+            PullResult result = lastPullResult;
+            if (result == null) {
+                throw new Exception("No response from server");
+            }
+            if (result.getSnapshot() != null) span.addBytes(result.getSnapshot().length);
+            return result;
         }
-        return result;
     }
 
     public List<Commit> getCommitHistory(String branch, int limit) throws Exception {
@@ -79,20 +138,126 @@ public class MapVCSClient implements AutoCloseable {
         request.setBranch(branch);
         request.setLimit(limit);
 
+        lastHistory = null;
+        lastError = null;
         channel.writeAndFlush(request);
 
         // 等待响应
-        synchronized (this) {
-            wait(5000);
-        }
+        waitForResponse(() -> lastHistory != null);
 
-        List<Commit> history = ClientHandler.lastHistory;
+        List<Commit> history = lastHistory;
         if (history == null) {
             throw new Exception("No response from server");
         }
         return history;
     }
 
+    public byte[] checkout(String commitId, String sinceCommit) throws Exception {
+        if (channel == null || !channel.isActive()) {
+            connect();
+        }
+
+        CheckoutRequest request = new CheckoutRequest();
+        request.setCommitId(commitId);
+        request.setSinceCommit(sinceCommit);
+        request.setAcceptSections(true);
+
+        lastCheckout = null;
+        lastError = null;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.NETWORK)) {
+            channel.writeAndFlush(request);
+
+            // 等待响应
+            waitForResponse(() -> lastCheckout != null);
+
+            CheckoutResponse response = lastCheckout;
+            if (response == null) {
+                throw new Exception("No response from server");
+            }
+            if (response.getDelta() != null) span.addBytes(response.getDelta().length);
+            return response.getDelta();
+        }
+    }
+
+    // 返回时服务器已持久化该提交
+    public void push(Commit commit, byte[] snapshot) throws Exception {
+        if (channel == null || !channel.isActive()) {
+            connect();
+        }
+
+        PushRequest request = new PushRequest();
+        request.setCommit(commit);
+        request.setSnapshot(snapshot);
+
+        lastPush = null;
+        lastError = null;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.NETWORK)) {
+            channel.writeAndFlush(request);
+
+            // 等待响应
+            waitForResponse(() -> lastPush != null);
+
+            if (lastPush == null) {
+                throw new Exception("No response from server");
+            }
+            span.addBytes(snapshot.length);
+        }
+    }
+
+    // commitId为空时使用分支头
+    public TreeResponse getTree(String branch, String commitId, String path) throws Exception {
+        if (channel == null || !channel.isActive()) {
+            connect();
+        }
+
+        TreeRequest request = new TreeRequest();
+        request.setBranch(branch);
+        request.setCommitId(commitId);
+        request.setPath(path);
+
+        lastTree = null;
+        lastError = null;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.NETWORK)) {
+            channel.writeAndFlush(request);
+
+            // 等待响应
+            waitForResponse(() -> lastTree != null);
+
+            TreeResponse response = lastTree;
+            if (response == null) {
+                throw new Exception("No response from server");
+            }
+            if (response.getChunkHashes() != null) span.addBytes(response.getChunkHashes().length);
+            return response;
+        }
+    }
+
+    public void subscribe(String branch, Consumer<BranchUpdate> listener) throws Exception {
+        if (channel == null || !channel.isActive()) {
+            connect();
+        }
+        branchListener = listener;
+
+        SubscribeRequest request = new SubscribeRequest();
+        request.setBranch(branch);
+        channel.writeAndFlush(request);
+    }
+
+    // 连续RESPONSE_TIMEOUT没有收到任何数据才视为超时，流式传输大快照时每个数据块都会刷新计时；
+    // 服务器传输名额已满时请求会排队，因此超时不能太短
+    private void waitForResponse(BooleanSupplier done) throws Exception {
+        lastActivity = System.currentTimeMillis();
+        synchronized (this) {
+            while (!done.getAsBoolean() && lastError == null && channel.isActive()
+                    && System.currentTimeMillis() - lastActivity < RESPONSE_TIMEOUT) {
+                wait(1000);
+            }
+        }
+        if (lastError != null) {
+            throw new Exception(lastError);
+        }
+    }
+
     @Override
     public void close() {
         if (channel != null) {
@@ -103,27 +268,104 @@ public class MapVCSClient implements AutoCloseable {
 
     private static class ClientHandler extends SimpleChannelInboundHandler<BaseMessage> {
 
-        public static PullResult lastPullResult;
-        public static List<Commit> lastHistory;
+        // 数组长度上限；预分配不超过64MB，实际更大时按需扩容
+        private static final long MAX_PAYLOAD_SIZE = Integer.MAX_VALUE - 8;
+        private static final int MAX_INITIAL_CAPACITY = 64 * 1024 * 1024;
+
+        // 正在接收的流式响应
+        private BaseMessage pendingResponse;
+        private ByteArrayOutputStream pendingPayload;
+        private long pendingSize;
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, BaseMessage msg) {
+            MapVCSClient client = ctx.channel().attr(CLIENT_KEY).get();
+            if (client != null) {
+                client.lastActivity = System.currentTimeMillis();
+            }
+
+            if (msg instanceof DataChunk) {
+                if (pendingResponse == null) return;
+                DataChunk chunk = (DataChunk) msg;
+                pendingPayload.write(chunk.getData(), 0, chunk.getData().length);
+                if (client != null) {
+                    client.profiler.progress(OperationProfiler.Phase.NETWORK, pendingPayload.size(), pendingSize);
+                }
+                if (!chunk.isLast()) return;
+
+                msg = pendingResponse;
+                if (msg instanceof PullResponse) ((PullResponse) msg).setSnapshot(pendingPayload.toByteArray());
+                else if (msg instanceof CheckoutResponse) ((CheckoutResponse) msg).setDelta(pendingPayload.toByteArray());
+                pendingResponse = null;
+                pendingPayload = null;
+            } else if (isStreamHeader(msg)) {
+                long size = msg instanceof PullResponse
+                        ? ((PullResponse) msg).getPayloadSize() : ((CheckoutResponse) msg).getPayloadSize();
+                if (size > MAX_PAYLOAD_SIZE) {
+                    // 无法放入单个数组，断开连接停止传输
+                    msg = new ErrorResponse("Payload of " + size + " bytes exceeds the client limit of " + MAX_PAYLOAD_SIZE);
+                    ctx.close();
+                } else {
+                    pendingResponse = msg;
+                    pendingPayload = new ByteArrayOutputStream((int) Math.min(size, MAX_INITIAL_CAPACITY));
+                    pendingSize = size;
+                    return;
+                }
+            }
+
+            // 推送通知不对应任何等待中的请求
+            if (msg instanceof BranchUpdate) {
+                if (client != null && client.branchListener != null) {
+                    client.branchListener.accept((BranchUpdate) msg);
+                }
+                return;
+            }
+
+            if (client == null) return;
             if (msg instanceof PullResponse) {
-                lastPullResult = new PullResult(
+                client.lastPullResult = new PullResult(
                         ((PullResponse) msg).getNewCommitId(),
                         ((PullResponse) msg).getSnapshot(),
-                        Collections.emptyList()
+                        Collections.emptyList(),
+                        ((PullResponse) msg).isDelta()
                 );
             } else if (msg instanceof HistoryResponse) {
-                lastHistory = ((HistoryResponse) msg).getCommits();
+                client.lastHistory = ((HistoryResponse) msg).getCommits();
+            } else if (msg instanceof CheckoutResponse) {
+                client.lastCheckout = (CheckoutResponse) msg;
+            } else if (msg instanceof PushResponse) {
+                client.lastPush = (PushResponse) msg;
+            } else if (msg instanceof TreeResponse) {
+                client.lastTree = (TreeResponse) msg;
+            } else if (msg instanceof ErrorResponse) {
+                client.lastError = ((ErrorResponse) msg).getMessage();
             }
 
+            synchronized (client) {
+                client.notifyAll();
+            }
+        }
+
+        private static boolean isStreamHeader(BaseMessage msg) {
+            if (msg instanceof PullResponse) {
+                PullResponse response = (PullResponse) msg;
+                return response.getSnapshot() == null && response.getPayloadSize() > 0;
+            }
+            if (msg instanceof CheckoutResponse) {
+                CheckoutResponse response = (CheckoutResponse) msg;
+                return response.getDelta() == null && response.getPayloadSize() > 0;
+            }
+            return false;
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            // 连接断开时通知订阅者，由其决定是否重新订阅
             MapVCSClient client = ctx.channel().attr(CLIENT_KEY).get();
-            if (client != null) {
-                synchronized (client) {
-                    client.notifyAll();
-                }
+            if (client != null && client.branchListener != null) {
+                client.branchListener.accept(null);
             }
+            super.channelInactive(ctx);
         }
     }
 }
\ No newline at end of file
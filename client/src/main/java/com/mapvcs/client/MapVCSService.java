@@ -1,9 +1,14 @@
 package com.mapvcs.client;
 
 import com.mapvcs.core.MapVCSProtocol.*;
+import com.mapvcs.core.RegionFile;
+import com.mapvcs.core.SectionDedup;
+import com.mapvcs.core.SnapshotDelta;
+import com.mapvcs.core.WorldHashTree;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.zip.*;
 import org.apache.commons.io.*;
 
@@ -14,6 +19,9 @@ public class MapVCSService {
     private final File stateFile;
     private String currentCommitId;
     private final MapVCSClient client;
+    private final WorldIndex index;
+    private final PrefetchCache prefetchCache;
+    private OperationProfiler profiler = new OperationProfiler(false);
 
     public MapVCSService(String serverAddress, File worldDir, String branch) {
         this.serverAddress = serverAddress;
@@ -21,9 +29,18 @@ public class MapVCSService {
         this.branch = branch;
         this.stateFile = new File(worldDir, ".mapvcs_state");
         this.client = new MapVCSClient(serverAddress);
+        this.index = new WorldIndex(worldDir);
+        this.prefetchCache = new PrefetchCache(new File(worldDir.getParentFile(), "snapshots/prefetch"));
         loadState();
     }
 
+    // 推送、拉取、检出各阶段的计时和进度显示
+    public void setProfiler(OperationProfiler profiler) {
+        this.profiler = profiler;
+        client.setProfiler(profiler);
+        index.setProfiler(profiler);
+    }
+
     public boolean isLocalConnection() {
         return serverAddress.startsWith("localhost") || serverAddress.startsWith("127.0.0.1");
     }
@@ -53,6 +70,7 @@ public class MapVCSService {
         try {
             byte[] emptySnapshot = createSnapshot(Collections.emptyMap());
             saveCommitLocally(initialCommit, emptySnapshot);
+            index.saveTree(initialCommit.getId(), new WorldHashTree());
         } catch (Exception e) {
             throw new IOException("Failed to create initial snapshot", e);
         }
@@ -103,7 +121,12 @@ public class MapVCSService {
     }
 
     public String pushChanges(String message, String author) throws Exception {
-        Map<String, byte[]> changes = calculateChanges();
+        return pushChanges(message, author, null);
+    }
+
+    // dirtyPaths不为空时只重新读取这些文件，其余文件沿用父提交的本地快照
+    public String pushChanges(String message, String author, Set<String> dirtyPaths) throws Exception {
+        Map<String, byte[]> changes = dirtyPaths != null ? calculateChanges(dirtyPaths) : calculateChanges();
 
         Commit commit = new Commit(
                 UUID.randomUUID().toString(),
@@ -116,7 +139,11 @@ public class MapVCSService {
 
         byte[] snapshot = createSnapshot(changes);
 
+        // 服务器确认持久化后才更新本地状态
+        client.push(commit, snapshot);
         saveCommitLocally(commit, snapshot);
+        // 哈希树必须与上传的快照一致，重新扫描会把打包之后的写入误记为已提交
+        index.saveTree(commit.getId(), index.buildTree(changes));
 
         currentCommitId = commit.getId();
         saveState(currentCommitId);
@@ -129,47 +156,346 @@ public class MapVCSService {
     }
 
     public PullResult pullUpdates() throws Exception {
-        PullResult result = client.pull(branch, currentCommitId);
+        // 预取的数据仍对应分支头时直接应用，不再下载
+        PullResult result = stagedPull();
+        if (result == null) {
+            result = client.pull(branch, currentCommitId, index.scan().rootHash(), currentCommitId != null);
+        }
 
         if (result.hasUpdates()) {
+            Map<String, byte[]> remoteChanges;
+            try {
+                remoteChanges = result.isDelta()
+                        ? resolveDelta(extractSnapshot(result.getSnapshot()))
+                        : extractSnapshot(result.getSnapshot());
+            } catch (IOException e) {
+                // 本地文件与当前提交不一致，补丁无法应用，改为拉取完整快照
+                result = client.pull(branch, currentCommitId, null, false);
+                remoteChanges = extractSnapshot(result.getSnapshot());
+            }
+
             Map<String, byte[]> localChanges = calculateChanges();
             byte[] baseSnapshot = getLocalSnapshot(currentCommitId);
-            Map<String, byte[]> remoteChanges = extractSnapshot(result.getSnapshot());
 
             Map<String, byte[]> merged = new HashMap<>();
-            for (String file : remoteChanges.keySet()) {
-                byte[] base = extractFile(baseSnapshot, file);
-                byte[] local = localChanges.get(file);
-                byte[] remote = remoteChanges.get(file);
-
-                merged.put(file, mergeChunk(base, local, remote));
+            try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.MERGE)) {
+                for (String file : remoteChanges.keySet()) {
+                    byte[] base = extractFile(baseSnapshot, file);
+                    byte[] local = localChanges.get(file);
+                    byte[] remote = remoteChanges.get(file);
+
+                    merged.put(file, mergeChunk(base, local, remote));
+                    span.addBytes(remote.length);
+                }
             }
 
             List<String> updatedFiles = applyChanges(createSnapshot(merged));
             currentCommitId = result.getNewCommitId();
             saveState(currentCommitId);
+            prefetchCache.clear();
+
+            cacheTree(currentCommitId);
 
             return new PullResult(
                     result.getNewCommitId(),
                     result.getSnapshot(),
-                    updatedFiles
+                    updatedFiles,
+                    result.isDelta()
             );
         }
 
+        // 本地内容已与分支头一致，只前移提交ID
+        if (result.getNewCommitId() != null && !result.getNewCommitId().equals(currentCommitId)) {
+            currentCommitId = result.getNewCommitId();
+            saveState(currentCommitId);
+            cacheTree(currentCommitId);
+        }
         return result;
     }
 
+    private PullResult stagedPull() throws Exception {
+        PullResult staged = prefetchCache.load(currentCommitId);
+        if (staged == null) return null;
+        // 预取之后分支头又移动过时重新拉取
+        String head = client.getTree(branch, null, "").getCommitId();
+        return staged.getNewCommitId().equals(head) ? staged : null;
+    }
+
+    // 把分支头相对当前提交的数据下载到预取暂存区，不修改世界；head为已知的分支头，已暂存时跳过。
+    // downloader为预取专用的连接（限速、低优先级线程），返回暂存的提交ID，没有新数据时返回null
+    public String prefetch(MapVCSClient downloader, String head) throws Exception {
+        // 世界可能已被其他进程拉取或检出
+        loadState();
+        if (head != null && (head.equals(currentCommitId) || prefetchCache.contains(currentCommitId, head))) {
+            return null;
+        }
+
+        PullResult result = downloader.pull(branch, currentCommitId, null, currentCommitId != null);
+        if (!result.hasUpdates()) {
+            prefetchCache.clear();
+            return null;
+        }
+        prefetchCache.store(currentCommitId, result);
+        return result.getNewCommitId();
+    }
+
+    // 检出任意历史提交：服务器只发送当前提交与目标提交之间的差异
+    public List<String> checkout(String commitId) throws Exception {
+        return checkout(commitId, false);
+    }
+
+    // 世界有未提交的改动时拒绝检出；force为true时丢弃这些改动，检出后世界与目标提交完全一致
+    @SuppressWarnings("try")
+    public List<String> checkout(String commitId, boolean force) throws Exception {
+        Set<String> modified = new TreeSet<>();
+        boolean full = false;
+        if (currentCommitId != null) {
+            try {
+                for (FileChange change : status()) modified.add(change.getPath());
+            } catch (Exception e) {
+                // 当前提交的哈希树既不在本地也不在服务器上，无法判断是否有改动
+                if (!force) {
+                    throw new IOException("Cannot check the world for uncommitted changes: " + e.getMessage()
+                            + "; check out with --force to discard them", e);
+                }
+                full = true;
+            }
+        }
+        if (!modified.isEmpty() && !force) {
+            throw new IOException("World has uncommitted changes in " + modified.size() + " files " + modified
+                    + "; push them first or check out with --force to discard them");
+        }
+
+        // 差异没有涉及的本地改动要恢复为当前提交的内容，没有当前提交的本地快照时改为下载完整快照
+        byte[] baseSnapshot = modified.isEmpty() ? null : getLocalSnapshot(currentCommitId);
+        full |= !modified.isEmpty() && baseSnapshot == null;
+        byte[] delta = client.checkout(commitId, full ? null : currentCommitId);
+        Map<String, byte[]> files = extractSnapshot(delta);
+
+        // 先在内存中还原所有文件，补丁无法应用时不会留下一半检出的世界
+        Map<String, byte[]> resolved;
+        try {
+            resolved = resolveDelta(files);
+        } catch (IOException e) {
+            // 本地文件已被修改，改为下载目标提交的完整快照
+            files = extractSnapshot(client.checkout(commitId, null));
+            resolved = resolveDelta(files);
+        }
+
+        // 服务器不认识当前提交时发送的是完整快照，目标提交中没有的本地文件都要删除
+        Set<String> deleted = SnapshotDelta.getDeleted(files);
+        if (SnapshotDelta.isReplace(files)) {
+            deleted.addAll(index.trackedFiles().keySet());
+            deleted.removeAll(resolved.keySet());
+        } else if (!modified.isEmpty()) {
+            // 这些文件在两个提交之间没有变化，当前提交中没有的是本地新增的文件
+            Map<String, byte[]> baseFiles = extractSnapshot(baseSnapshot);
+            for (String path : modified) {
+                if (resolved.containsKey(path) || deleted.contains(path)) continue;
+                byte[] data = baseFiles.get(path);
+                if (data != null) resolved.put(path, data);
+                else deleted.add(path);
+            }
+        }
+
+        List<String> updatedFiles = new ArrayList<>();
+        try (OperationProfiler.Span ignored = profiler.start(OperationProfiler.Phase.APPLY)) {
+            for (String path : deleted) {
+                FileUtils.deleteQuietly(new File(worldDir, path));
+                updatedFiles.add(path);
+            }
+        }
+        updatedFiles.addAll(applyChanges(createSnapshot(resolved)));
+
+        currentCommitId = commitId;
+        saveState(currentCommitId);
+        prefetchCache.clear();
+        cacheTree(currentCommitId);
+        return updatedFiles;
+    }
+
+    // 本地世界相对当前提交的改动；当前提交的哈希树已缓存时无需联网（区块哈希表缺失时除外）
+    public List<FileChange> status() throws Exception {
+        if (currentCommitId == null) {
+            throw new IOException("Repository not initialized");
+        }
+        return compare(new CommitTree(currentCommitId, index.loadTree(currentCommitId)), index.scan());
+    }
+
+    // 只重新检查paths中的文件，其余文件视为与当前提交一致；用于改动范围已知的场合（守护进程监听到的写入）。
+    // 当前提交的哈希树没有缓存时退回全量扫描
+    public List<FileChange> status(Set<String> paths) throws Exception {
+        if (currentCommitId == null) {
+            throw new IOException("Repository not initialized");
+        }
+        WorldHashTree base = index.loadTree(currentCommitId);
+        if (base == null) return status();
+
+        WorldHashTree local = new WorldHashTree();
+        for (Map.Entry<String, String> file : base.getFiles().entrySet()) {
+            if (!paths.contains(file.getKey())) local.put(file.getKey(), file.getValue());
+        }
+        for (Map.Entry<String, String> file : index.scan(paths).entrySet()) {
+            local.put(file.getKey(), file.getValue());
+        }
+        return compare(new CommitTree(currentCommitId, base), local);
+    }
+
+    // 本地世界相对服务器上某个提交（默认分支头）的改动，只逐层下载哈希不同的部分
+    public List<FileChange> diff(String commitId) throws Exception {
+        return compare(new CommitTree(commitId, null), index.scan());
+    }
+
+    private List<FileChange> compare(CommitTree base, WorldHashTree local) throws Exception {
+        List<FileChange> changes = new ArrayList<>();
+        if (local.rootHash().equals(base.rootHash())) return changes;
+
+        Map<String, String> localGroups = local.groupHashes();
+        Map<String, String> baseGroups = base.groupHashes();
+        Set<String> groups = new TreeSet<>(localGroups.keySet());
+        groups.addAll(baseGroups.keySet());
+
+        for (String group : groups) {
+            if (Objects.equals(localGroups.get(group), baseGroups.get(group))) continue;
+
+            Map<String, String> localFiles = local.children(group);
+            Map<String, String> baseFiles = baseGroups.containsKey(group)
+                    ? base.children(group) : Collections.emptyMap();
+            Set<String> paths = new TreeSet<>(localFiles.keySet());
+            paths.addAll(baseFiles.keySet());
+
+            for (String path : paths) {
+                String localHash = localFiles.get(path);
+                String baseHash = baseFiles.get(path);
+                if (Objects.equals(localHash, baseHash)) continue;
+
+                if (baseHash == null) {
+                    changes.add(new FileChange(path, ChangeType.ADDED, new File(worldDir, path).length(), null));
+                } else if (localHash == null) {
+                    changes.add(new FileChange(path, ChangeType.DELETED, 0, null));
+                } else if (RegionFile.isRegionPath(path)) {
+                    List<Integer> chunks = WorldHashTree.diffChunks(
+                            index.localChunkHashes(path, localHash), base.chunkHashes(path, baseHash));
+                    changes.add(new FileChange(path, ChangeType.MODIFIED, index.chunkBytes(path, chunks), chunks));
+                } else {
+                    changes.add(new FileChange(path, ChangeType.MODIFIED, new File(worldDir, path).length(), null));
+                }
+            }
+        }
+        return changes;
+    }
+
+    // 拉取或检出后缓存新提交的哈希树，失败不影响主流程
+    private void cacheTree(String commitId) {
+        try {
+            if (index.loadTree(commitId) != null) return;
+            CommitTree remote = new CommitTree(commitId, null);
+            WorldHashTree tree = new WorldHashTree();
+            for (String group : remote.groupHashes().keySet()) {
+                for (Map.Entry<String, String> file : remote.children(group).entrySet()) {
+                    tree.put(file.getKey(), file.getValue());
+                }
+            }
+            if (tree.rootHash().equals(remote.rootHash())) {
+                index.saveTree(commitId, tree);
+            }
+        } catch (Exception e) {
+            System.err.println("Failed to cache tree of " + commitId + ": " + e.getMessage());
+        }
+    }
+
+    // 提交的哈希树：已缓存时直接使用，否则按需逐层向服务器请求
+    private class CommitTree {
+        private String commitId;
+        private final WorldHashTree cached;
+        private TreeResponse root;
+
+        CommitTree(String commitId, WorldHashTree cached) {
+            this.commitId = commitId;
+            this.cached = cached;
+        }
+
+        String rootHash() throws Exception {
+            return cached != null ? cached.rootHash() : root().getHash();
+        }
+
+        Map<String, String> groupHashes() throws Exception {
+            return cached != null ? cached.groupHashes() : root().getChildren();
+        }
+
+        Map<String, String> children(String group) throws Exception {
+            if (cached != null) return cached.children(group);
+            return client.getTree(branch, commitId, group).getChildren();
+        }
+
+        byte[] chunkHashes(String path, String hash) throws Exception {
+            byte[] table = index.loadObject(hash);
+            if (table == null) {
+                table = client.getTree(branch, commitId, path).getChunkHashes();
+                if (table != null) index.saveObject(hash, table);
+            }
+            return table;
+        }
+
+        private TreeResponse root() throws Exception {
+            if (root == null) {
+                root = client.getTree(branch, commitId, "");
+                // 固定为分支头当时的提交，后续请求不受分支移动影响
+                commitId = root.getCommitId();
+            }
+            return root;
+        }
+    }
+
+    // 在当前提交的文件上应用差异，返回差异新增或修改的文件的完整内容
+    private Map<String, byte[]> resolveDelta(Map<String, byte[]> delta) throws IOException {
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.MERGE)) {
+            Map<String, byte[]> files = applyDelta(delta);
+            for (byte[] data : files.values()) span.addBytes(data.length);
+            return files;
+        }
+    }
+
+    private Map<String, byte[]> applyDelta(Map<String, byte[]> delta) throws IOException {
+        Set<String> changed = SnapshotDelta.changedPaths(delta);
+        Map<String, byte[]> files = new HashMap<>();
+        Map<String, byte[]> baseFiles = null;
+        for (String key : delta.keySet()) {
+            if (!SnapshotDelta.isPatch(key)) continue;
+
+            // 优先使用当前提交的本地快照，没有时使用世界目录中的文件
+            if (baseFiles == null) {
+                byte[] baseSnapshot = currentCommitId != null ? getLocalSnapshot(currentCommitId) : null;
+                baseFiles = baseSnapshot != null ? extractSnapshot(baseSnapshot) : new HashMap<>();
+            }
+            String path = SnapshotDelta.patchTarget(key);
+            File f = new File(worldDir, path);
+            byte[] base = baseFiles.containsKey(path) ? baseFiles.get(path)
+                    : f.isFile() ? FileUtils.readFileToByteArray(f) : null;
+            if (base != null) files.put(path, base);
+        }
+
+        SnapshotDelta.apply(files, delta);
+        files.keySet().retainAll(changed);
+        return files;
+    }
+
     private byte[] getLocalSnapshot(String commitId) throws IOException {
         File snapshotFile = new File(worldDir.getParentFile(), "snapshots/" + commitId + ".zip");
-        return FileUtils.readFileToByteArray(snapshotFile);
+        // 通过拉取或检出得到的提交在本地没有快照
+        return snapshotFile.exists() ? FileUtils.readFileToByteArray(snapshotFile) : null;
     }
 
     private byte[] extractFile(byte[] snapshot, String fileName) throws IOException {
-        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
+        if (snapshot == null) return null;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.COMPRESS);
+             ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
                 if (fileName.equals(entry.getName())) {
-                    return IOUtils.toByteArray(zis);
+                    byte[] data = IOUtils.toByteArray(zis);
+                    span.addBytes(data.length);
+                    return data;
                 }
             }
         }
@@ -177,53 +503,81 @@ public class MapVCSService {
     }
 
     private Map<String, byte[]> extractSnapshot(byte[] snapshot) throws IOException {
-        Map<String, byte[]> files = new HashMap<>();
-        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                files.put(entry.getName(), IOUtils.toByteArray(zis));
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.COMPRESS)) {
+            Map<String, byte[]> files = new HashMap<>();
+            try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    byte[] data = IOUtils.toByteArray(zis);
+                    files.put(entry.getName(), data);
+                    span.addBytes(data.length);
+                }
             }
+            // 服务器传输时去重的子区块在这里还原
+            return SectionDedup.isPacked(files) ? SectionDedup.unpackInline(files) : files;
         }
-        return files;
     }
 
     private Map<String, byte[]> calculateChanges() throws IOException {
-        Map<String, byte[]> changes = new HashMap<>();
-
-        File regionDir = new File(worldDir, "region");
-        if (regionDir.exists()) {
-            for (File regionFile : Objects.requireNonNull(regionDir.listFiles((dir, name) -> name.endsWith(".mca")))) {
-                byte[] currentData = FileUtils.readFileToByteArray(regionFile);
-                changes.put("region/" + regionFile.getName(), currentData);
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.SCAN)) {
+            Map<String, File> tracked = index.trackedFiles();
+            long total = 0;
+            for (File f : tracked.values()) total += f.length();
+
+            Map<String, byte[]> changes = new HashMap<>();
+            long done = 0;
+            for (Map.Entry<String, File> file : tracked.entrySet()) {
+                byte[] data = FileUtils.readFileToByteArray(file.getValue());
+                changes.put(file.getKey(), data);
+                done += data.length;
+                profiler.progress(OperationProfiler.Phase.SCAN, done, total);
             }
+            span.addBytes(done);
+            return changes;
         }
+    }
 
-        for (String file : new String[]{"level.dat", "level.dat_old", "session.lock"}) {
-            File f = new File(worldDir, file);
-            if (f.exists()) {
-                changes.put(file, FileUtils.readFileToByteArray(f));
+    private Map<String, byte[]> calculateChanges(Set<String> dirtyPaths) throws IOException {
+        byte[] baseSnapshot = currentCommitId != null ? getLocalSnapshot(currentCommitId) : null;
+        if (baseSnapshot == null) return calculateChanges();
+
+        Map<String, byte[]> changes = extractSnapshot(baseSnapshot);
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.SCAN)) {
+            for (String path : dirtyPaths) {
+                File f = new File(worldDir, path);
+                if (WorldIndex.isTracked(path) && f.isFile()) {
+                    byte[] data = FileUtils.readFileToByteArray(f);
+                    changes.put(path, data);
+                    span.addBytes(data.length);
+                } else {
+                    changes.remove(path);
+                }
             }
         }
-
         return changes;
     }
 
     private byte[] createSnapshot(Map<String, byte[]> changes) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
-            for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
-                ZipEntry zipEntry = new ZipEntry(entry.getKey());
-                zos.putNextEntry(zipEntry);
-                zos.write(entry.getValue());
-                zos.closeEntry();
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.COMPRESS)) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+                for (Map.Entry<String, byte[]> entry : changes.entrySet()) {
+                    ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                    zos.putNextEntry(zipEntry);
+                    zos.write(entry.getValue());
+                    zos.closeEntry();
+                    span.addBytes(entry.getValue().length);
+                }
             }
+            return baos.toByteArray();
         }
-        return baos.toByteArray();
     }
 
     private List<String> applyChanges(byte[] snapshot) throws IOException {
         List<String> updatedFiles = new ArrayList<>();
-        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.APPLY);
+             ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
+            long written = 0;
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
                 String fileName = entry.getName();
@@ -232,11 +586,18 @@ public class MapVCSService {
                 FileUtils.copyToFile(zis, outputFile);
                 zis.closeEntry();
                 updatedFiles.add(fileName);
+                written += outputFile.length();
+                profiler.progress(OperationProfiler.Phase.APPLY, written, 0);
             }
+            span.addBytes(written);
         }
         return updatedFiles;
     }
 
+    public void watchBranch(Consumer<BranchUpdate> listener) throws Exception {
+        client.subscribe(branch, listener);
+    }
+
     public List<Commit> getCommitHistory(int limit) throws Exception {
         return client.getCommitHistory(branch, limit);
     }
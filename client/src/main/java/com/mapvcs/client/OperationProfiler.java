@@ -0,0 +1,138 @@
+package com.mapvcs.client;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+// 客户端操作计时：按阶段累计耗时和处理的字节数，嵌套的阶段只计入最内层，各阶段耗时之和不超过总耗时。
+// 客户端以Java 8为目标，无法使用JFR自定义事件，用这个轻量的计时层代替
+public class OperationProfiler {
+    public enum Phase {
+        SCAN, HASH, COMPRESS, NETWORK, MERGE, APPLY
+    }
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final long[] nanos = new long[Phase.values().length];
+    private final long[] bytes = new long[Phase.values().length];
+    private final int[] counts = new int[Phase.values().length];
+    private final long started = System.nanoTime();
+    private final ThreadLocal<Deque<Span>> spans = ThreadLocal.withInitial(ArrayDeque::new);
+
+    // 实时进度输出到stderr，不干扰stdout上的结果
+    private final PrintStream progressOut;
+    private Phase progressPhase;
+    private long progressStarted;
+    private long progressPrinted;
+
+    public OperationProfiler(boolean liveProgress) {
+        this.progressOut = liveProgress ? System.err : null;
+    }
+
+    // 一次计时，关闭时计入所属阶段；期间开始的嵌套计时会暂停它
+    public class Span implements AutoCloseable {
+        private final Phase phase;
+        private long resumed;
+        private long elapsed;
+        private long processed;
+
+        private Span(Phase phase, long now) {
+            this.phase = phase;
+            this.resumed = now;
+        }
+
+        public void addBytes(long n) {
+            processed += n;
+        }
+
+        @Override
+        public void close() {
+            long now = System.nanoTime();
+            Deque<Span> stack = spans.get();
+            stack.remove(this);
+            elapsed += now - resumed;
+            // 同一阶段的最外层计时结束时才结束进度行
+            boolean outermost = stack.stream().noneMatch(span -> span.phase == phase);
+            record(phase, elapsed, processed, outermost);
+
+            Span parent = stack.peek();
+            if (parent != null) parent.resumed = now;
+        }
+    }
+
+    public Span start(Phase phase) {
+        long now = System.nanoTime();
+        Deque<Span> stack = spans.get();
+        Span parent = stack.peek();
+        if (parent != null) parent.elapsed += now - parent.resumed;
+
+        Span span = new Span(phase, now);
+        stack.push(span);
+        return span;
+    }
+
+    private synchronized void record(Phase phase, long elapsed, long processed, boolean outermost) {
+        nanos[phase.ordinal()] += elapsed;
+        bytes[phase.ordinal()] += processed;
+        if (outermost) counts[phase.ordinal()]++;
+        if (outermost && phase == progressPhase) finishProgress();
+    }
+
+    // 显示实时进度，total不大于0表示总量未知；最多每200毫秒刷新一次
+    public synchronized void progress(Phase phase, long done, long total) {
+        if (progressOut == null) return;
+
+        long now = System.nanoTime();
+        if (phase != progressPhase) {
+            finishProgress();
+            progressPhase = phase;
+            progressStarted = now;
+        } else if (now - progressPrinted < PROGRESS_INTERVAL && (total <= 0 || done < total)) {
+            return;
+        }
+        progressPrinted = now;
+
+        double seconds = Math.max(now - progressStarted, 1) / 1e9;
+        String amount = total > 0 ? megabytes(done) + " / " + megabytes(total) + " MB" : megabytes(done) + " MB";
+        progressOut.print(String.format("\r%-8s %s  %.1f MB/s   ", label(phase), amount, done / 1e6 / seconds));
+        progressOut.flush();
+    }
+
+    private void finishProgress() {
+        if (progressPhase != null) {
+            progressOut.println();
+            progressPhase = null;
+        }
+    }
+
+    // 各阶段耗时、占比、字节数和吞吐量
+    public synchronized String report() {
+        long total = System.nanoTime() - started;
+        long measured = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-10s %10s %7s %6s %12s %10s%n", "Phase", "Time(ms)", "Share", "Count", "Bytes", "MB/s"));
+        for (Phase phase : Phase.values()) {
+            int i = phase.ordinal();
+            if (counts[i] == 0) continue;
+            measured += nanos[i];
+            double seconds = nanos[i] / 1e9;
+            // 不足1毫秒的阶段算出的吞吐量没有意义
+            String rate = bytes[i] > 0 && nanos[i] >= TimeUnit.MILLISECONDS.toNanos(1) ? String.format("%.1f", bytes[i] / 1e6 / seconds) : "-";
+            sb.append(String.format("%-10s %10d %6.1f%% %6d %12d %10s%n", label(phase),
+                    TimeUnit.NANOSECONDS.toMillis(nanos[i]), 100.0 * nanos[i] / total, counts[i], bytes[i], rate));
+        }
+        long other = Math.max(total - measured, 0);
+        sb.append(String.format("%-10s %10d %6.1f%%%n", "other", TimeUnit.NANOSECONDS.toMillis(other), 100.0 * other / total));
+        sb.append(String.format("%-10s %10d%n", "total", TimeUnit.NANOSECONDS.toMillis(total)));
+        return sb.toString();
+    }
+
+    private static String label(Phase phase) {
+        return phase.name().toLowerCase();
+    }
+
+    private static String megabytes(long n) {
+        return String.format("%.1f", n / 1e6);
+    }
+}
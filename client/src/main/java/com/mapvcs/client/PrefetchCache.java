@@ -0,0 +1,94 @@
+package com.mapvcs.client;
+
+import com.mapvcs.core.MapVCSProtocol.PullResult;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Properties;
+
+// 预取暂存区：保存从某个提交拉取到分支头的数据（差异或完整快照），只保留最新的一份。
+// 预取进程和pull可能同时访问，文件先写入临时文件再原子替换，读取时数据缺失视为没有暂存
+public class PrefetchCache {
+    private static final String INDEX_FILE = "staged.properties";
+
+    private final File dir;
+
+    public PrefetchCache(File dir) {
+        this.dir = dir;
+    }
+
+    // sinceCommit为拉取时世界所在的提交
+    public synchronized void store(String sinceCommit, PullResult result) throws IOException {
+        FileUtils.forceMkdir(dir);
+        String payloadName = result.getNewCommitId() + ".zip";
+        replace(new File(dir, payloadName), result.getSnapshot());
+
+        Properties props = new Properties();
+        if (sinceCommit != null) props.setProperty("sinceCommit", sinceCommit);
+        props.setProperty("commitId", result.getNewCommitId());
+        props.setProperty("delta", String.valueOf(result.isDelta()));
+        props.setProperty("payload", payloadName);
+        File index = new File(dir, INDEX_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(index.toPath())) {
+            props.store(out, "MapVCS Prefetch");
+        }
+        Files.move(index.toPath(), new File(dir, INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // 删除被取代的数据
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".zip") && !name.equals(payloadName));
+        if (files != null) {
+            for (File f : files) FileUtils.deleteQuietly(f);
+        }
+    }
+
+    // 返回从sinceCommit开始的暂存数据，没有时返回null
+    public synchronized PullResult load(String sinceCommit) {
+        Properties props = readIndex(sinceCommit);
+        if (props == null) return null;
+        try {
+            byte[] payload = FileUtils.readFileToByteArray(new File(dir, props.getProperty("payload")));
+            return new PullResult(props.getProperty("commitId"), payload,
+                    Collections.emptyList(), Boolean.parseBoolean(props.getProperty("delta")));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // 已暂存从sinceCommit到commitId的数据
+    public synchronized boolean contains(String sinceCommit, String commitId) {
+        Properties props = readIndex(sinceCommit);
+        return props != null && commitId.equals(props.getProperty("commitId"))
+                && new File(dir, props.getProperty("payload")).isFile();
+    }
+
+    public synchronized void clear() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    private Properties readIndex(String sinceCommit) {
+        File index = new File(dir, INDEX_FILE);
+        if (!index.isFile()) return null;
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(index.toPath())) {
+            props.load(in);
+        } catch (IOException e) {
+            return null;
+        }
+        boolean matches = sinceCommit == null ? props.getProperty("sinceCommit") == null
+                : sinceCommit.equals(props.getProperty("sinceCommit"));
+        return matches ? props : null;
+    }
+
+    private static void replace(File target, byte[] data) throws IOException {
+        File tmp = new File(target.getPath() + ".tmp");
+        FileUtils.writeByteArrayToFile(tmp, data);
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,107 @@
+package com.mapvcs.client;
+
+import com.mapvcs.core.MapVCSProtocol.BranchUpdate;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// 后台预取：监听分支头，分支移动后把新提交的数据下载到本地暂存区，之后的pull只需在本地应用。
+// 下载使用单独的限速连接，网络线程和下载线程都是低优先级的守护线程，尽量不影响同机运行的游戏服务器
+public class Prefetcher implements AutoCloseable {
+    // 预取失败后的重试间隔，连续失败时翻倍
+    private static final long MIN_RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 300000;
+
+    private final MapVCSService service;
+    private final MapVCSClient downloader;
+    private final BlockingQueue<Optional<BranchUpdate>> updates = new LinkedBlockingQueue<>();
+    private final Consumer<BranchUpdate> listener = update -> updates.add(Optional.ofNullable(update));
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    // bytesPerSecond为下载限速，0表示不限
+    public Prefetcher(MapVCSService service, String serverAddress, long bytesPerSecond) {
+        this.service = service;
+        this.downloader = new MapVCSClient(serverAddress, bytesPerSecond,
+                new DefaultThreadFactory("mapvcs-prefetch-io", true, Thread.MIN_PRIORITY));
+        this.worker = new Thread(this::run, "mapvcs-prefetch");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+    }
+
+    public void start() throws Exception {
+        // 通知走普通连接，下载走限速连接
+        service.watchBranch(listener);
+        worker.start();
+    }
+
+    public void join() throws InterruptedException {
+        worker.join();
+    }
+
+    private void run() {
+        // 启动和重新订阅时分支头可能已经移动，先预取一次
+        boolean stale = true;
+        String head = null;
+        long retryDelay = MIN_RETRY_DELAY;
+        while (running) {
+            try {
+                if (stale) {
+                    try {
+                        String commitId = service.prefetch(downloader, head);
+                        if (commitId != null) {
+                            System.out.println(new Date() + " Prefetched " + commitId);
+                        }
+                        stale = false;
+                        retryDelay = MIN_RETRY_DELAY;
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        // 分支头不再移动时不会有新的通知，不能等通知再重试
+                        System.err.println("Prefetch failed, retrying in " + retryDelay / 1000 + " seconds: " + e.getMessage());
+                        Thread.sleep(retryDelay);
+                        retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+                        continue;
+                    }
+                }
+
+                Optional<BranchUpdate> update = updates.take();
+                // 下载期间积压的通知只需处理最新的一个
+                Optional<BranchUpdate> next;
+                while (update.isPresent() && (next = updates.poll()) != null) {
+                    update = next;
+                }
+
+                if (!update.isPresent()) {
+                    System.err.println("Connection lost, resubscribing in 5 seconds");
+                    Thread.sleep(5000);
+                    head = null;
+                    stale = true;
+                    try {
+                        service.watchBranch(listener);
+                    } catch (Exception e) {
+                        updates.add(Optional.empty());
+                    }
+                    continue;
+                }
+                head = update.get().getHeadCommit();
+                stale = head != null;
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                System.err.println("Prefetch failed: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        worker.interrupt();
+        downloader.close();
+    }
+}
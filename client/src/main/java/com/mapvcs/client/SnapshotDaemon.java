@@ -0,0 +1,212 @@
+package com.mapvcs.client;
+
+import com.mapvcs.core.MapVCSProtocol.FileChange;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+// 后台快照守护进程：监听世界目录的写入，合并自动保存产生的连续写入，按间隔提交发生变化的文件
+public class SnapshotDaemon implements AutoCloseable {
+    // 需要监听的目录，区域文件目录可能在运行中才被创建
+    private static final List<String> WATCHED_DIRS = Arrays.asList("", "region", "DIM-1", "DIM-1/region", "DIM1", "DIM1/region");
+
+    private final MapVCSService service;
+    private final File worldDir;
+    private final long intervalMillis;
+    private final long debounceMillis;
+    private final String author;
+    private final SaveHook saveHook;
+    private final WatchService watcher;
+    private final Map<WatchKey, String> keys = new HashMap<>();
+
+    private final Set<String> dirty = new TreeSet<>();
+    // 事件溢出或启动时无法确定改动范围，下次提交前全量扫描
+    private boolean fullRescan = true;
+    private long firstDirty;
+    private long lastEvent;
+    private long lastCommit;
+    private volatile boolean running = true;
+
+    // 提交前后通知正在运行的Minecraft服务器暂停/恢复自动保存
+    public interface SaveHook {
+        void saveOff() throws Exception;
+        void saveOn() throws Exception;
+    }
+
+    // 执行本地命令（例如通过RCON工具发送save-off/save-all和save-on）
+    public static class CommandSaveHook implements SaveHook {
+        private final String saveOffCommand;
+        private final String saveOnCommand;
+
+        public CommandSaveHook(String saveOffCommand, String saveOnCommand) {
+            this.saveOffCommand = saveOffCommand;
+            this.saveOnCommand = saveOnCommand;
+        }
+
+        @Override
+        public void saveOff() throws Exception {
+            run(saveOffCommand);
+        }
+
+        @Override
+        public void saveOn() throws Exception {
+            run(saveOnCommand);
+        }
+
+        private static void run(String command) throws Exception {
+            if (command == null || command.isEmpty()) return;
+            Process process = new ProcessBuilder(command.trim().split("\\s+")).inheritIO().start();
+            if (!process.waitFor(60, TimeUnit.SECONDS)) {
+                process.destroy();
+                throw new IOException("Command timed out: " + command);
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("Command failed with exit code " + process.exitValue() + ": " + command);
+            }
+        }
+    }
+
+    public SnapshotDaemon(MapVCSService service, File worldDir, long intervalMillis, long debounceMillis,
+                          String author, SaveHook saveHook) throws IOException {
+        this.service = service;
+        this.worldDir = worldDir;
+        this.intervalMillis = intervalMillis;
+        this.debounceMillis = debounceMillis;
+        this.author = author;
+        this.saveHook = saveHook;
+        this.watcher = FileSystems.getDefault().newWatchService();
+
+        for (String dir : WATCHED_DIRS) {
+            register(dir);
+        }
+        long now = System.currentTimeMillis();
+        firstDirty = now;
+        lastEvent = now;
+    }
+
+    public void run() throws Exception {
+        while (running) {
+            WatchKey key;
+            try {
+                key = watcher.poll(1, TimeUnit.SECONDS);
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            if (key != null) {
+                handleEvents(key);
+            }
+
+            if (shouldCommit(System.currentTimeMillis())) {
+                commit();
+            }
+        }
+    }
+
+    // 到达提交间隔后，等待写入平息debounce时间再提交；持续写入时最多推迟10个debounce
+    private boolean shouldCommit(long now) {
+        if (!fullRescan && dirty.isEmpty()) return false;
+        if (now - lastCommit < intervalMillis) return false;
+        return now - lastEvent >= debounceMillis || now - Math.max(firstDirty, lastCommit + intervalMillis) >= debounceMillis * 10;
+    }
+
+    private void handleEvents(WatchKey key) {
+        String dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                markDirty(null);
+                continue;
+            }
+
+            String name = event.context().toString();
+            String path = dir.isEmpty() ? name : dir + "/" + name;
+            if (event.kind() == ENTRY_CREATE && WATCHED_DIRS.contains(path)) {
+                // 新建目录注册前写入的文件不会产生事件
+                register(path);
+                markDirty(null);
+            } else if (WorldIndex.isTracked(path)) {
+                markDirty(path);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+    }
+
+    private void markDirty(String path) {
+        long now = System.currentTimeMillis();
+        if (!fullRescan && dirty.isEmpty()) firstDirty = now;
+        lastEvent = now;
+        if (path == null) fullRescan = true;
+        else dirty.add(path);
+    }
+
+    private void commit() {
+        lastCommit = System.currentTimeMillis();
+
+        boolean saveOff = false;
+        try {
+            if (saveHook != null) {
+                saveHook.saveOff();
+                saveOff = true;
+            }
+
+            // save-all刷盘写入的文件也要计入本次提交，先处理积压的事件再取出改动集合
+            drainEvents();
+            Set<String> paths = fullRescan ? null : new TreeSet<>(dirty);
+            dirty.clear();
+            fullRescan = false;
+
+            // 自动保存可能只是重写了相同内容；只对监听到写入的文件计算哈希，事件溢出或出错后才全量扫描
+            List<FileChange> changes = paths != null ? service.status(paths) : service.status();
+            int changed = changes.size();
+            if (changed == 0) return;
+
+            String commitId = service.pushChanges("Auto snapshot: " + changed + " file(s) changed", author, paths);
+            System.out.println(new Date() + " Committed " + commitId + " (" + changed + " file(s) changed)");
+        } catch (Exception e) {
+            System.err.println("Snapshot failed: " + e.getMessage());
+            // 下次重试时全量扫描
+            markDirty(null);
+        } finally {
+            if (saveOff) {
+                try {
+                    saveHook.saveOn();
+                } catch (Exception e) {
+                    System.err.println("Failed to resume saving: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void drainEvents() {
+        WatchKey key;
+        try {
+            while ((key = watcher.poll()) != null) {
+                handleEvents(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // 守护进程正在退出
+        }
+    }
+
+    private void register(String dir) {
+        Path path = new File(worldDir, dir).toPath();
+        if (!Files.isDirectory(path) || keys.containsValue(dir)) return;
+        try {
+            keys.put(path.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + path + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        watcher.close();
+    }
+}
@@ -0,0 +1,248 @@
+package com.mapvcs.client;
+
+import com.mapvcs.core.RegionFile;
+import com.mapvcs.core.WorldHashTree;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// 本地世界的哈希索引：记录每个文件的大小和修改时间，只有发生变化的文件才重新读取和计算哈希。
+// 区块哈希表保存在snapshots/objects，各提交的哈希树保存在snapshots/trees
+public class WorldIndex {
+    private final File worldDir;
+    private final File indexFile;
+    private final File objectsDir;
+    private final File treesDir;
+    private OperationProfiler profiler = new OperationProfiler(false);
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    public WorldIndex(File worldDir) {
+        this.worldDir = worldDir;
+        this.indexFile = new File(worldDir, ".mapvcs_index");
+        File snapshotsDir = new File(worldDir.getParentFile(), "snapshots");
+        this.objectsDir = new File(snapshotsDir, "objects");
+        this.treesDir = new File(snapshotsDir, "trees");
+    }
+
+    public void setProfiler(OperationProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    // 主世界、下界、末地的区域文件目录
+    public static final String[] REGION_DIRS = {"region", "DIM-1/region", "DIM1/region"};
+    public static final String[] TOP_LEVEL_FILES = {"level.dat", "level.dat_old", "session.lock"};
+
+    // 纳入版本管理的文件，推送时打包的也是这些文件
+    public Map<String, File> trackedFiles() {
+        Map<String, File> files = new TreeMap<>();
+
+        for (String dir : REGION_DIRS) {
+            File regionDir = new File(worldDir, dir);
+            if (!regionDir.exists()) continue;
+            for (File regionFile : Objects.requireNonNull(regionDir.listFiles((d, name) -> name.endsWith(".mca")))) {
+                files.put(dir + "/" + regionFile.getName(), regionFile);
+            }
+        }
+
+        for (String file : TOP_LEVEL_FILES) {
+            File f = new File(worldDir, file);
+            if (f.exists()) {
+                files.put(file, f);
+            }
+        }
+        return files;
+    }
+
+    public static boolean isTracked(String path) {
+        return RegionFile.isRegionPath(path) && Arrays.asList(REGION_DIRS).contains(WorldHashTree.groupOf(path))
+                || Arrays.asList(TOP_LEVEL_FILES).contains(path);
+    }
+
+    // 读取的字节数由hashFile中的嵌套计时统计，外层计时只记录时间
+    @SuppressWarnings("try")
+    public WorldHashTree scan() throws IOException {
+        try (OperationProfiler.Span ignored = profiler.start(OperationProfiler.Phase.SCAN)) {
+            Map<String, Entry> cached = loadIndex();
+            Map<String, Entry> updated = new TreeMap<>();
+            Map<String, File> stale = new TreeMap<>();
+            long staleBytes = 0;
+
+            for (Map.Entry<String, File> file : trackedFiles().entrySet()) {
+                String path = file.getKey();
+                File f = file.getValue();
+                Entry entry = cached.get(path);
+                if (entry == null || entry.size != f.length() || entry.modified != f.lastModified()) {
+                    stale.put(path, f);
+                    staleBytes += f.length();
+                } else {
+                    updated.put(path, entry);
+                }
+            }
+
+            long done = 0;
+            for (Map.Entry<String, File> file : stale.entrySet()) {
+                File f = file.getValue();
+                updated.put(file.getKey(), new Entry(f.length(), f.lastModified(), hashFile(file.getKey(), f)));
+                done += f.length();
+                profiler.progress(OperationProfiler.Phase.SCAN, done, staleBytes);
+            }
+
+            WorldHashTree tree = new WorldHashTree();
+            for (Map.Entry<String, Entry> entry : updated.entrySet()) {
+                tree.put(entry.getKey(), entry.getValue().hash);
+            }
+            if (!stale.isEmpty() || cached.size() != updated.size()) {
+                saveIndex(updated);
+            }
+            return tree;
+        }
+    }
+
+    // 只检查给定的文件，返回其中存在且纳入版本管理的文件的哈希；用于已知改动范围的场合，不遍历整个世界
+    @SuppressWarnings("try")
+    public Map<String, String> scan(Set<String> paths) throws IOException {
+        try (OperationProfiler.Span ignored = profiler.start(OperationProfiler.Phase.SCAN)) {
+            Map<String, Entry> entries = loadIndex();
+            Map<String, String> hashes = new TreeMap<>();
+            boolean changed = false;
+            for (String path : paths) {
+                File f = new File(worldDir, path);
+                if (!isTracked(path) || !f.isFile()) {
+                    changed |= entries.remove(path) != null;
+                    continue;
+                }
+
+                Entry entry = entries.get(path);
+                if (entry == null || entry.size != f.length() || entry.modified != f.lastModified()) {
+                    entry = new Entry(f.length(), f.lastModified(), hashFile(path, f));
+                    entries.put(path, entry);
+                    changed = true;
+                }
+                hashes.put(path, entry.hash);
+            }
+            if (changed) {
+                saveIndex(new TreeMap<>(entries));
+            }
+            return hashes;
+        }
+    }
+
+    // 由文件内容构建哈希树，用于记录推送的快照本身；推送前后世界可能已有新的写入
+    public WorldHashTree buildTree(Map<String, byte[]> files) throws IOException {
+        Map<String, byte[]> chunkTables = new HashMap<>();
+        WorldHashTree tree;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.HASH)) {
+            tree = WorldHashTree.build(files, chunkTables);
+            for (byte[] data : files.values()) span.addBytes(data.length);
+        }
+        for (Map.Entry<String, byte[]> table : chunkTables.entrySet()) {
+            saveObject(table.getKey(), table.getValue());
+        }
+        return tree;
+    }
+
+    // 本地区域文件的区块哈希表，缓存丢失时重新计算
+    public byte[] localChunkHashes(String path, String hash) throws IOException {
+        byte[] table = loadObject(hash);
+        if (table == null) {
+            hashFile(path, new File(worldDir, path));
+            table = loadObject(hash);
+        }
+        return table;
+    }
+
+    public byte[] loadObject(String hash) throws IOException {
+        File file = new File(objectsDir, hash);
+        return file.exists() ? FileUtils.readFileToByteArray(file) : null;
+    }
+
+    public void saveObject(String hash, byte[] data) throws IOException {
+        File file = new File(objectsDir, hash);
+        if (!file.exists()) {
+            FileUtils.writeByteArrayToFile(file, data);
+        }
+    }
+
+    public WorldHashTree loadTree(String commitId) throws IOException {
+        File file = new File(treesDir, commitId + ".tree");
+        return file.exists() ? WorldHashTree.parse(FileUtils.readFileToByteArray(file)) : null;
+    }
+
+    public void saveTree(String commitId, WorldHashTree tree) throws IOException {
+        FileUtils.writeByteArrayToFile(new File(treesDir, commitId + ".tree"), tree.serialize());
+    }
+
+    // 本地文件中指定区块记录的总字节数
+    public long chunkBytes(String path, List<Integer> chunks) throws IOException {
+        byte[][] records = RegionFile.readChunks(FileUtils.readFileToByteArray(new File(worldDir, path)));
+        long bytes = 0;
+        for (int i : chunks) {
+            if (records[i] != null) bytes += records[i].length;
+        }
+        return bytes;
+    }
+
+    private String hashFile(String path, File file) throws IOException {
+        byte[] data;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.SCAN)) {
+            data = FileUtils.readFileToByteArray(file);
+            span.addBytes(data.length);
+        }
+
+        Map<String, byte[]> chunkTables = new HashMap<>();
+        String hash;
+        try (OperationProfiler.Span span = profiler.start(OperationProfiler.Phase.HASH)) {
+            hash = WorldHashTree.hashFile(path, data, chunkTables);
+            span.addBytes(data.length);
+        }
+        for (Map.Entry<String, byte[]> table : chunkTables.entrySet()) {
+            saveObject(table.getKey(), table.getValue());
+        }
+        return hash;
+    }
+
+    // 每行"路径\t大小\t修改时间\t哈希"
+    private Map<String, Entry> loadIndex() {
+        Map<String, Entry> entries = new HashMap<>();
+        if (!indexFile.exists()) return entries;
+
+        try {
+            for (String line : FileUtils.readLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t");
+                if (parts.length != 4) continue;
+                entries.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            // 索引损坏时全部重新计算
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void saveIndex(Map<String, Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry e = entry.getValue();
+            sb.append(entry.getKey()).append('\t').append(e.size).append('\t')
+                    .append(e.modified).append('\t').append(e.hash).append('\n');
+        }
+        try {
+            FileUtils.writeStringToFile(indexFile, sb.toString(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to save index: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.mapvcs.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 二进制差异编码（类似VCDIFF/bsdiff的COPY/ADD指令流），用于解压后的区块NBT数据
+// 格式：varint基准长度、varint目标长度，随后是指令：COPY = 0, varint偏移, varint长度；ADD = 1, varint长度, 原始字节
+@SuppressWarnings("unused")
+public class ChunkDelta {
+    private static final int BLOCK_SIZE = 16;
+    private static final int HASH_MULTIPLIER = 31;
+    private static final byte OP_COPY = 0;
+    private static final byte OP_ADD = 1;
+
+    // 一条指令：COPY引用基准数据中的[offset, offset + length)，ADD携带data中的[offset, offset + length)
+    private static class Op {
+        final boolean copy;
+        final byte[] data;
+        final int offset;
+        final int length;
+
+        Op(boolean copy, byte[] data, int offset, int length) {
+            this.copy = copy;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public static byte[] encode(byte[] base, byte[] target) {
+        List<Op> ops = new ArrayList<>();
+        int addStart = 0;
+
+        if (base.length >= BLOCK_SIZE && target.length >= BLOCK_SIZE) {
+            // 基准数据按块对齐建立索引，目标数据逐字节滚动匹配，命中后向前后扩展
+            Map<Integer, Integer> blocks = new HashMap<>();
+            for (int o = base.length - BLOCK_SIZE - (base.length % BLOCK_SIZE); o >= 0; o -= BLOCK_SIZE) {
+                blocks.put(hash(base, o), o);
+            }
+
+            int power = 1;
+            for (int i = 1; i < BLOCK_SIZE; i++) power *= HASH_MULTIPLIER;
+
+            int p = 0;
+            int h = hash(target, 0);
+            while (p + BLOCK_SIZE <= target.length) {
+                Integer candidate = blocks.get(h);
+                if (candidate != null && matches(base, candidate, target, p)) {
+                    int o = candidate;
+                    int start = p;
+                    while (o > 0 && start > addStart && base[o - 1] == target[start - 1]) {
+                        o--;
+                        start--;
+                    }
+                    int length = p - start + BLOCK_SIZE;
+                    while (o + length < base.length && start + length < target.length
+                            && base[o + length] == target[start + length]) {
+                        length++;
+                    }
+
+                    if (start > addStart) ops.add(new Op(false, target, addStart, start - addStart));
+                    ops.add(new Op(true, null, o, length));
+                    p = start + length;
+                    addStart = p;
+                    if (p + BLOCK_SIZE <= target.length) h = hash(target, p);
+                    continue;
+                }
+
+                if (p + BLOCK_SIZE < target.length) {
+                    h = (h - (target[p] & 0xFF) * power) * HASH_MULTIPLIER + (target[p + BLOCK_SIZE] & 0xFF);
+                }
+                p++;
+            }
+        }
+        if (addStart < target.length) ops.add(new Op(false, target, addStart, target.length - addStart));
+
+        return write(base.length, target.length, ops);
+    }
+
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        Reader in = new Reader(delta);
+        int baseLength = in.varint();
+        int targetLength = in.varint();
+        if (baseLength != base.length) {
+            throw new IOException("Delta expects base of " + baseLength + " bytes, got " + base.length);
+        }
+
+        byte[] target = new byte[targetLength];
+        int pos = 0;
+        while (in.hasMore()) {
+            Op op = in.op();
+            if (pos + op.length > targetLength) throw new IOException("Delta overruns target");
+            if (op.copy) {
+                if (op.offset + op.length > base.length) throw new IOException("Delta copies beyond base");
+                System.arraycopy(base, op.offset, target, pos, op.length);
+            } else {
+                System.arraycopy(op.data, op.offset, target, pos, op.length);
+            }
+            pos += op.length;
+        }
+        if (pos != targetLength) throw new IOException("Delta produced " + pos + " of " + targetLength + " bytes");
+        return target;
+    }
+
+    // 合并相邻差异：first把A变为B，second把B变为C，结果直接把A变为C
+    public static byte[] compose(byte[] first, byte[] second) throws IOException {
+        Reader firstIn = new Reader(first);
+        int baseLength = firstIn.varint();
+        int middleLength = firstIn.varint();
+        List<Op> firstOps = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        int pos = 0;
+        while (firstIn.hasMore()) {
+            Op op = firstIn.op();
+            firstOps.add(op);
+            starts.add(pos);
+            pos += op.length;
+        }
+
+        Reader secondIn = new Reader(second);
+        if (secondIn.varint() != middleLength) throw new IOException("Deltas are not adjacent");
+        int targetLength = secondIn.varint();
+
+        List<Op> ops = new ArrayList<>();
+        while (secondIn.hasMore()) {
+            Op op = secondIn.op();
+            if (!op.copy) {
+                ops.add(op);
+                continue;
+            }
+            if (op.offset + op.length > middleLength) throw new IOException("Delta copies beyond base");
+
+            // 把second的COPY区间映射到first的指令上
+            int found = Collections.binarySearch(starts, op.offset);
+            int index = found >= 0 ? found : -found - 2;
+            int from = op.offset;
+            int remaining = op.length;
+            while (remaining > 0) {
+                Op source = firstOps.get(index);
+                int skip = from - starts.get(index);
+                int length = Math.min(remaining, source.length - skip);
+                ops.add(new Op(source.copy, source.data, source.offset + skip, length));
+                from += length;
+                remaining -= length;
+                index++;
+            }
+        }
+
+        return write(baseLength, targetLength, ops);
+    }
+
+    private static byte[] write(int baseLength, int targetLength, List<Op> ops) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarint(out, baseLength);
+        writeVarint(out, targetLength);
+
+        Op pending = null;
+        for (Op op : ops) {
+            // 连续的COPY合并为一条
+            if (pending != null && pending.copy && op.copy && pending.offset + pending.length == op.offset) {
+                pending = new Op(true, null, pending.offset, pending.length + op.length);
+                continue;
+            }
+            if (pending != null) writeOp(out, pending);
+            pending = op;
+        }
+        if (pending != null) writeOp(out, pending);
+        return out.toByteArray();
+    }
+
+    private static void writeOp(ByteArrayOutputStream out, Op op) {
+        if (op.copy) {
+            out.write(OP_COPY);
+            writeVarint(out, op.offset);
+            writeVarint(out, op.length);
+        } else {
+            out.write(OP_ADD);
+            writeVarint(out, op.length);
+            out.write(op.data, op.offset, op.length);
+        }
+    }
+
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int hash(byte[] data, int pos) {
+        int h = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            h = h * HASH_MULTIPLIER + (data[pos + i] & 0xFF);
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int o, byte[] target, int p) {
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (base[o + i] != target[p + i]) return false;
+        }
+        return true;
+    }
+
+    // 顺序读取差异数据
+    static class Reader {
+        private final byte[] data;
+        private int pos;
+
+        Reader(byte[] data) {
+            this(data, 0);
+        }
+
+        Reader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        boolean hasMore() {
+            return pos < data.length;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        byte readByte() throws IOException {
+            if (pos >= data.length) throw new IOException("Truncated delta");
+            return data[pos++];
+        }
+
+        int varint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        byte[] bytes(int length) throws IOException {
+            if (length < 0 || pos + length > data.length) throw new IOException("Truncated delta");
+            byte[] result = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return result;
+        }
+
+        private Op op() throws IOException {
+            byte tag = readByte();
+            if (tag == OP_COPY) {
+                int offset = varint();
+                int length = varint();
+                return new Op(true, null, offset, length);
+            }
+            if (tag == OP_ADD) {
+                int length = varint();
+                if (length < 0 || pos + length > data.length) throw new IOException("Truncated delta");
+                Op op = new Op(false, data, pos, length);
+                pos += length;
+                return op;
+            }
+            throw new IOException("Unknown delta op " + tag);
+        }
+    }
+}
@@ -8,7 +8,7 @@ import java.util.List;
 
 @SuppressWarnings("unused")
 public class MapVCSDecoder extends ByteToMessageDecoder {
-    private final Gson gson = new Gson();
+    private final Gson gson = MapVCSProtocol.GSON;
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
@@ -40,6 +40,33 @@ public class MapVCSDecoder extends ByteToMessageDecoder {
             case HISTORY_RESPONSE:
                 out.add(gson.fromJson(json, MapVCSProtocol.HistoryResponse.class));
                 break;
+            case SUBSCRIBE:
+                out.add(gson.fromJson(json, MapVCSProtocol.SubscribeRequest.class));
+                break;
+            case BRANCH_UPDATE:
+                out.add(gson.fromJson(json, MapVCSProtocol.BranchUpdate.class));
+                break;
+            case CHECKOUT:
+                out.add(gson.fromJson(json, MapVCSProtocol.CheckoutRequest.class));
+                break;
+            case CHECKOUT_RESPONSE:
+                out.add(gson.fromJson(json, MapVCSProtocol.CheckoutResponse.class));
+                break;
+            case DATA_CHUNK:
+                out.add(gson.fromJson(json, MapVCSProtocol.DataChunk.class));
+                break;
+            case TREE:
+                out.add(gson.fromJson(json, MapVCSProtocol.TreeRequest.class));
+                break;
+            case TREE_RESPONSE:
+                out.add(gson.fromJson(json, MapVCSProtocol.TreeResponse.class));
+                break;
+            case PUSH:
+                out.add(gson.fromJson(json, MapVCSProtocol.PushRequest.class));
+                break;
+            case PUSH_RESPONSE:
+                out.add(gson.fromJson(json, MapVCSProtocol.PushResponse.class));
+                break;
             case ERROR:
                 out.add(gson.fromJson(json, MapVCSProtocol.ErrorResponse.class));
                 break;
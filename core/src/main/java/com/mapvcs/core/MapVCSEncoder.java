@@ -7,7 +7,7 @@ import com.google.gson.Gson;
 
 @SuppressWarnings("unused")
 public class MapVCSEncoder extends MessageToByteEncoder<MapVCSProtocol.BaseMessage> {
-    private final Gson gson = new Gson();
+    private final Gson gson = MapVCSProtocol.GSON;
 
     @Override
     protected void encode(ChannelHandlerContext ctx, MapVCSProtocol.BaseMessage msg, ByteBuf out) {
@@ -1,15 +1,45 @@
 package com.mapvcs.core;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import java.io.IOException;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("unused")
 public class MapVCSProtocol {
+    // byte[]按Base64编码，避免默认的JSON数字数组使数据膨胀数倍
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(byte[].class, new TypeAdapter<byte[]>() {
+                @Override
+                public void write(JsonWriter out, byte[] value) throws IOException {
+                    if (value == null) out.nullValue();
+                    else out.value(Base64.getEncoder().encodeToString(value));
+                }
+
+                @Override
+                public byte[] read(JsonReader in) throws IOException {
+                    if (in.peek() == JsonToken.NULL) {
+                        in.nextNull();
+                        return null;
+                    }
+                    return Base64.getDecoder().decode(in.nextString());
+                }
+            })
+            .create();
+
     public enum MessageType {
-        PULL, PULL_RESPONSE, COMMIT_HISTORY, HISTORY_RESPONSE, ERROR
+        PULL, PULL_RESPONSE, COMMIT_HISTORY, HISTORY_RESPONSE, ERROR, SUBSCRIBE, BRANCH_UPDATE, CHECKOUT, CHECKOUT_RESPONSE, DATA_CHUNK,
+        TREE, TREE_RESPONSE, PUSH, PUSH_RESPONSE
     }
 
     @Data
@@ -23,6 +53,12 @@ public class MapVCSProtocol {
     public static class PullRequest extends BaseMessage {
         private String branch;
         private String sinceCommit;
+        // 本地世界哈希树的根，与服务器分支头一致时无需传输
+        private String localRoot;
+        // 客户端能在本地应用差异时，服务器只发送sinceCommit到分支头的差异
+        private boolean acceptDelta;
+        // 客户端能还原子区块引用时，服务器对传输的区域文件做子区块去重（SectionDedup）
+        private boolean acceptSections;
 
         public PullRequest() {
             type = MessageType.PULL;
@@ -31,14 +67,19 @@ public class MapVCSProtocol {
 
     @EqualsAndHashCode(callSuper = true)
     @Data
+    @NoArgsConstructor
     @AllArgsConstructor
     public static class PullResponse extends BaseMessage {
-        private String newCommitId;
-        private byte[] snapshot;
-
-        public PullResponse() {
+        {
             type = MessageType.PULL_RESPONSE;
         }
+
+        private String newCommitId;
+        private byte[] snapshot;
+        // 大于0且snapshot为空时，快照随后以DataChunk流式发送
+        private long payloadSize;
+        // snapshot是相对请求中sinceCommit的差异（SnapshotDelta），而不是完整快照
+        private boolean delta;
     }
 
     @EqualsAndHashCode(callSuper = true)
@@ -54,26 +95,146 @@ public class MapVCSProtocol {
 
     @EqualsAndHashCode(callSuper = true)
     @Data
+    @NoArgsConstructor
     @AllArgsConstructor
     public static class HistoryResponse extends BaseMessage {
-        private List<Commit> commits;
-
-        public HistoryResponse() {
+        {
             type = MessageType.HISTORY_RESPONSE;
         }
+
+        private List<Commit> commits;
     }
 
     @EqualsAndHashCode(callSuper = true)
     @Data
+    @NoArgsConstructor
     @AllArgsConstructor
     public static class ErrorResponse extends BaseMessage {
+        {
+            type = MessageType.ERROR;
+        }
+
         private String message;
+    }
 
-        public ErrorResponse() {
-            type = MessageType.ERROR;
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class SubscribeRequest extends BaseMessage {
+        private String branch;
+
+        public SubscribeRequest() {
+            type = MessageType.SUBSCRIBE;
         }
     }
 
+    // 服务端在分支头移动时主动推送
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class BranchUpdate extends BaseMessage {
+        {
+            type = MessageType.BRANCH_UPDATE;
+        }
+
+        private String branch;
+        private String headCommit;
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class CheckoutRequest extends BaseMessage {
+        private String commitId;
+        private String sinceCommit;
+        private boolean acceptSections;
+
+        public CheckoutRequest() {
+            type = MessageType.CHECKOUT;
+        }
+    }
+
+    // delta为从sinceCommit到commitId的文件级差异（SnapshotDelta格式的ZIP）
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class CheckoutResponse extends BaseMessage {
+        {
+            type = MessageType.CHECKOUT_RESPONSE;
+        }
+
+        private String commitId;
+        private byte[] delta;
+        private long payloadSize;
+    }
+
+    // 大块数据按顺序拆分发送，last标记最后一块
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class DataChunk extends BaseMessage {
+        {
+            type = MessageType.DATA_CHUNK;
+        }
+
+        private byte[] data;
+        private boolean last;
+    }
+
+    // 按层获取提交的哈希树：path为空时返回根和各目录，为目录时返回其中的文件，为区域文件时返回区块哈希表
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class TreeRequest extends BaseMessage {
+        private String branch;
+        private String commitId;
+        private String path;
+
+        public TreeRequest() {
+            type = MessageType.TREE;
+        }
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class TreeResponse extends BaseMessage {
+        {
+            type = MessageType.TREE_RESPONSE;
+        }
+
+        private String commitId;
+        private String path;
+        private String hash;
+        private Map<String, String> children;
+        private byte[] chunkHashes;
+    }
+
+    // 推送提交及其完整快照，服务器持久化后才返回PushResponse
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    public static class PushRequest extends BaseMessage {
+        private Commit commit;
+        private byte[] snapshot;
+
+        public PushRequest() {
+            type = MessageType.PUSH;
+        }
+    }
+
+    @EqualsAndHashCode(callSuper = true)
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class PushResponse extends BaseMessage {
+        {
+            type = MessageType.PUSH_RESPONSE;
+        }
+
+        private String commitId;
+    }
+
     @Data
     @AllArgsConstructor
     public static class Commit {
@@ -85,12 +246,28 @@ public class MapVCSProtocol {
         private String message;
     }
 
+    public enum ChangeType {
+        ADDED, MODIFIED, DELETED
+    }
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class FileChange {
+        private String path;
+        private ChangeType changeType;
+        private long bytesChanged;
+        // 区域文件内发生变化的区块序号(x + z * 32)，非区域文件为null
+        private List<Integer> chunks;
+    }
+
     @Data
     @AllArgsConstructor
     public static class PullResult {
         private String newCommitId;
         private byte[] snapshot;
         private List<String> updatedFiles;
+        private boolean delta;
 
         public boolean hasUpdates() {
             return snapshot != null && snapshot.length > 0;
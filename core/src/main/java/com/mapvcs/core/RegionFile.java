@@ -0,0 +1,168 @@
+package com.mapvcs.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+// Anvil区域文件(.mca)解析：4KB位置表 + 4KB时间戳表，随后按4KB扇区存放区块
+@SuppressWarnings("unused")
+public class RegionFile {
+    public static final int CHUNKS = 1024;
+    public static final int SECTOR_SIZE = 4096;
+    public static final int HEADER_SIZE = SECTOR_SIZE * 2;
+    public static final byte COMPRESSION_GZIP = 1;
+    public static final byte COMPRESSION_ZLIB = 2;
+    public static final byte COMPRESSION_NONE = 3;
+
+    private static final Pattern REGION_PATH = Pattern.compile("(?:(.*)/)?region/r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+
+    public static boolean isRegionPath(String path) {
+        return REGION_PATH.matcher(path).matches();
+    }
+
+    // 维度目录前缀，主世界为空字符串，下界为"DIM-1"，末地为"DIM1"
+    public static String dimensionOf(String path) {
+        Matcher m = REGION_PATH.matcher(path);
+        if (!m.matches()) return null;
+        return m.group(1) != null ? m.group(1) : "";
+    }
+
+    public static int[] regionCoords(String path) {
+        Matcher m = REGION_PATH.matcher(path);
+        if (!m.matches()) return null;
+        return new int[]{Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3))};
+    }
+
+    public static String regionPath(String dimension, int regionX, int regionZ) {
+        String prefix = dimension == null || dimension.isEmpty() ? "" : dimension + "/";
+        return prefix + "region/r." + regionX + "." + regionZ + ".mca";
+    }
+
+    public static int chunkIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    // 返回每个区块的原始记录（压缩类型字节 + 压缩数据），不存在的区块为null
+    public static byte[][] readChunks(byte[] data) {
+        byte[][] chunks = new byte[CHUNKS][];
+        if (data == null || data.length < HEADER_SIZE) return chunks;
+
+        for (int i = 0; i < CHUNKS; i++) {
+            int location = readInt(data, i * 4);
+            int offset = (location >>> 8) * SECTOR_SIZE;
+            if (location == 0 || offset < HEADER_SIZE || offset + 5 > data.length) continue;
+
+            int length = readInt(data, offset);
+            if (length <= 0 || offset + 4 + length > data.length) continue;
+
+            byte[] chunk = new byte[length];
+            System.arraycopy(data, offset + 4, chunk, 0, length);
+            chunks[i] = chunk;
+        }
+        return chunks;
+    }
+
+    // 时间戳表：每个区块最后保存的时间（秒）
+    public static int[] readTimestamps(byte[] data) {
+        int[] timestamps = new int[CHUNKS];
+        if (data == null || data.length < HEADER_SIZE) return timestamps;
+
+        for (int i = 0; i < CHUNKS; i++) {
+            timestamps[i] = readInt(data, SECTOR_SIZE + i * 4);
+        }
+        return timestamps;
+    }
+
+    // 解压区块记录得到NBT数据；不支持的压缩格式（如LZ4或外部.mcc文件）返回null
+    public static byte[] decompress(byte[] record) throws IOException {
+        if (record == null || record.length < 1) return null;
+
+        InputStream in = new ByteArrayInputStream(record, 1, record.length - 1);
+        switch (record[0]) {
+            case COMPRESSION_GZIP:
+                in = new GZIPInputStream(in);
+                break;
+            case COMPRESSION_ZLIB:
+                in = new InflaterInputStream(in);
+                break;
+            case COMPRESSION_NONE:
+                break;
+            default:
+                return null;
+        }
+
+        try (InputStream stream = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(record.length * 4);
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = stream.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    // 同decompress，但损坏的区块记录也返回null，调用方按原始字节处理，单个区块损坏不影响整个文件
+    public static byte[] decompressQuietly(byte[] record) {
+        try {
+            return decompress(record);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // 以zlib压缩NBT数据，得到区块记录
+    public static byte[] compress(byte[] nbt) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(nbt.length / 2 + 16);
+        out.write(COMPRESSION_ZLIB);
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(out)) {
+            deflater.write(nbt);
+        }
+        return out.toByteArray();
+    }
+
+    // 由区块记录重新组装区域文件，区块按序号连续存放，时间戳表置零
+    public static byte[] write(byte[][] chunks) {
+        return write(chunks, null);
+    }
+
+    public static byte[] write(byte[][] chunks, int[] timestamps) {
+        int sectors = HEADER_SIZE / SECTOR_SIZE;
+        int[] locations = new int[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            if (chunks[i] == null) continue;
+            int count = (chunks[i].length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            locations[i] = (sectors << 8) | count;
+            sectors += count;
+        }
+
+        byte[] data = new byte[sectors * SECTOR_SIZE];
+        for (int i = 0; i < CHUNKS; i++) {
+            if (chunks[i] == null) continue;
+            writeInt(data, i * 4, locations[i]);
+            if (timestamps != null) writeInt(data, SECTOR_SIZE + i * 4, timestamps[i]);
+            int offset = (locations[i] >>> 8) * SECTOR_SIZE;
+            writeInt(data, offset, chunks[i].length);
+            System.arraycopy(chunks[i], 0, data, offset + 4, chunks[i].length);
+        }
+        return data;
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,189 @@
+package com.mapvcs.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// 区域文件的区块级补丁：只记录变化的区块，区块改动较小时存储解压后NBT的二进制差异，否则存储完整区块记录
+// 格式："MVRP"、varint条目数，每个条目为varint区块序号、类型字节及其内容：
+//   REMOVE无内容；FULL为时间戳、varint长度、区块记录；DELTA为时间戳、基准NBT的SHA-1、varint长度、ChunkDelta差异
+@SuppressWarnings("unused")
+public class RegionPatch {
+    private static final byte[] MAGIC = {'M', 'V', 'R', 'P'};
+    private static final byte REMOVE = 0;
+    private static final byte FULL = 1;
+    private static final byte DELTA = 2;
+    // 差异加上基准哈希不超过完整区块记录的80%才值得使用
+    private static final double MAX_DELTA_RATIO = 0.8;
+
+    private static class Entry {
+        final byte kind;
+        final int timestamp;
+        final byte[] baseHash;
+        final byte[] data;
+
+        Entry(byte kind, int timestamp, byte[] baseHash, byte[] data) {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.baseHash = baseHash;
+            this.data = data;
+        }
+    }
+
+    // 两个文件的区块内容完全一致时返回null
+    public static byte[] diff(byte[] base, byte[] target) throws IOException {
+        byte[][] baseChunks = RegionFile.readChunks(base);
+        byte[][] targetChunks = RegionFile.readChunks(target);
+        int[] timestamps = RegionFile.readTimestamps(target);
+
+        Map<Integer, Entry> entries = new TreeMap<>();
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            if (Arrays.equals(baseChunks[i], targetChunks[i])) continue;
+            if (targetChunks[i] == null) {
+                entries.put(i, new Entry(REMOVE, 0, null, null));
+                continue;
+            }
+
+            byte[] baseNbt = RegionFile.decompressQuietly(baseChunks[i]);
+            byte[] targetNbt = RegionFile.decompressQuietly(targetChunks[i]);
+            // 任一侧无法解压时存储完整区块记录，由原始字节还原
+            if (baseNbt != null && targetNbt != null) {
+                // 只是重新压缩过
+                if (Arrays.equals(baseNbt, targetNbt)) continue;
+
+                byte[] delta = ChunkDelta.encode(baseNbt, targetNbt);
+                if (delta.length + WorldHashTree.HASH_SIZE <= targetChunks[i].length * MAX_DELTA_RATIO) {
+                    entries.put(i, new Entry(DELTA, timestamps[i], sha1(baseNbt), delta));
+                    continue;
+                }
+            }
+            entries.put(i, new Entry(FULL, timestamps[i], null, targetChunks[i]));
+        }
+        return entries.isEmpty() ? null : write(entries);
+    }
+
+    // 基准文件中对应区块的NBT与补丁记录的哈希不符时抛出IOException
+    public static byte[] apply(byte[] base, byte[] patch) throws IOException {
+        byte[][] chunks = RegionFile.readChunks(base);
+        int[] timestamps = RegionFile.readTimestamps(base);
+
+        for (Map.Entry<Integer, Entry> e : read(patch).entrySet()) {
+            int i = e.getKey();
+            Entry entry = e.getValue();
+            switch (entry.kind) {
+                case REMOVE:
+                    chunks[i] = null;
+                    break;
+                case FULL:
+                    chunks[i] = entry.data;
+                    break;
+                default:
+                    byte[] nbt = RegionFile.decompress(chunks[i]);
+                    if (nbt == null || !Arrays.equals(sha1(nbt), entry.baseHash)) {
+                        throw new IOException("Patch does not match base of chunk " + i);
+                    }
+                    chunks[i] = RegionFile.compress(ChunkDelta.apply(nbt, entry.data));
+            }
+            timestamps[i] = entry.timestamp;
+        }
+        return RegionFile.write(chunks, timestamps);
+    }
+
+    // 合并相邻补丁，结果等价于先应用first再应用second
+    public static byte[] compose(byte[] first, byte[] second) throws IOException {
+        Map<Integer, Entry> entries = read(first);
+        for (Map.Entry<Integer, Entry> e : read(second).entrySet()) {
+            int i = e.getKey();
+            Entry entry = e.getValue();
+            Entry previous = entries.get(i);
+            if (entry.kind != DELTA || previous == null) {
+                entries.put(i, entry);
+                continue;
+            }
+
+            switch (previous.kind) {
+                case REMOVE:
+                    throw new IOException("Patch modifies removed chunk " + i);
+                case FULL:
+                    byte[] nbt = RegionFile.decompress(previous.data);
+                    if (nbt == null || !Arrays.equals(sha1(nbt), entry.baseHash)) {
+                        throw new IOException("Patch does not match base of chunk " + i);
+                    }
+                    entries.put(i, new Entry(FULL, entry.timestamp, null,
+                            RegionFile.compress(ChunkDelta.apply(nbt, entry.data))));
+                    break;
+                default:
+                    entries.put(i, new Entry(DELTA, entry.timestamp, previous.baseHash,
+                            ChunkDelta.compose(previous.data, entry.data)));
+            }
+        }
+        return write(entries);
+    }
+
+    private static Map<Integer, Entry> read(byte[] patch) throws IOException {
+        if (patch.length < MAGIC.length || !Arrays.equals(Arrays.copyOf(patch, MAGIC.length), MAGIC)) {
+            throw new IOException("Not a region patch");
+        }
+
+        ChunkDelta.Reader in = new ChunkDelta.Reader(patch, MAGIC.length);
+        int count = in.varint();
+        Map<Integer, Entry> entries = new TreeMap<>();
+        for (int n = 0; n < count; n++) {
+            int index = in.varint();
+            if (index < 0 || index >= RegionFile.CHUNKS) throw new IOException("Invalid chunk index " + index);
+
+            byte kind = in.readByte();
+            if (kind == REMOVE) {
+                entries.put(index, new Entry(REMOVE, 0, null, null));
+                continue;
+            }
+            int timestamp = readInt(in);
+            byte[] baseHash = kind == DELTA ? in.bytes(WorldHashTree.HASH_SIZE) : null;
+            if (kind != FULL && kind != DELTA) throw new IOException("Unknown patch entry " + kind);
+            entries.put(index, new Entry(kind, timestamp, baseHash, in.bytes(in.varint())));
+        }
+        return entries;
+    }
+
+    private static byte[] write(Map<Integer, Entry> entries) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(MAGIC, 0, MAGIC.length);
+        ChunkDelta.writeVarint(out, entries.size());
+        for (Map.Entry<Integer, Entry> e : entries.entrySet()) {
+            Entry entry = e.getValue();
+            ChunkDelta.writeVarint(out, e.getKey());
+            out.write(entry.kind);
+            if (entry.kind == REMOVE) continue;
+
+            writeInt(out, entry.timestamp);
+            if (entry.kind == DELTA) out.write(entry.baseHash, 0, entry.baseHash.length);
+            ChunkDelta.writeVarint(out, entry.data.length);
+            out.write(entry.data, 0, entry.data.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static int readInt(ChunkDelta.Reader in) throws IOException {
+        return ((in.readByte() & 0xFF) << 24) | ((in.readByte() & 0xFF) << 16)
+                | ((in.readByte() & 0xFF) << 8) | (in.readByte() & 0xFF);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+package com.mapvcs.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// 子区块（16×16×16）去重：把区块NBT中sections列表里重复的子区块替换为按内容哈希的引用，
+// 全空气、石头、深板岩、海洋等相同的子区块只需存储/传输一份。只解析定位子区块所需的NBT结构，其余字节原样保留
+// 子区块的Y标签不参与哈希，不同高度的相同子区块也能共用
+@SuppressWarnings("unused")
+public class SectionDedup {
+    // 文件表中存在此条目表示区域文件已去重
+    public static final String PACKED_ENTRY = ".mapvcs_sectioned";
+    // 随快照一起传输时，子区块数据存放在此前缀下
+    public static final String SECTION_PREFIX = ".mapvcs_sections/";
+    // 小于此大小的子区块不值得替换为引用
+    private static final int MIN_SECTION_SIZE = 128;
+
+    private static final String REF_HASH = "mapvcs_section";
+    private static final String REF_Y = "mapvcs_y";
+    private static final String REF_Y_OFFSET = "mapvcs_y_at";
+
+    private static final byte TAG_END = 0;
+    private static final byte TAG_BYTE_ARRAY = 7;
+    private static final byte TAG_INT = 3;
+    private static final byte TAG_STRING = 8;
+    private static final byte TAG_LIST = 9;
+    private static final byte TAG_COMPOUND = 10;
+    private static final byte TAG_INT_ARRAY = 11;
+    private static final byte TAG_LONG_ARRAY = 12;
+
+    public interface SectionSource {
+        byte[] get(String hash) throws IOException;
+    }
+
+    // 区域文件中重复出现的子区块替换为引用，子区块数据（哈希 -> 未压缩NBT）写入sections
+    // 只出现一次的子区块留在区块内，与相邻数据一起压缩效果更好
+    public static Map<String, byte[]> pack(Map<String, byte[]> files, Map<String, byte[]> sections) throws IOException {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            if (!RegionFile.isRegionPath(entry.getKey())) continue;
+            for (byte[] record : RegionFile.readChunks(entry.getValue())) {
+                List<Section> list = parseSections(RegionFile.decompressQuietly(record));
+                if (list == null) continue;
+                for (Section section : list) counts.merge(section.hash, 1, Integer::sum);
+            }
+        }
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            result.put(entry.getKey(), RegionFile.isRegionPath(entry.getKey())
+                    ? packRegion(entry.getValue(), counts, sections) : entry.getValue());
+        }
+        result.put(PACKED_ENTRY, new byte[0]);
+        return result;
+    }
+
+    public static Map<String, byte[]> unpack(Map<String, byte[]> files, SectionSource source) throws IOException {
+        // 同一子区块通常被大量区块引用
+        Map<String, byte[]> cache = new HashMap<>();
+        SectionSource cached = hash -> {
+            byte[] section = cache.get(hash);
+            if (section == null) {
+                section = source.get(hash);
+                if (section == null) throw new IOException("Missing section " + hash);
+                cache.put(hash, section);
+            }
+            return section;
+        };
+
+        Map<String, byte[]> result = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            String path = entry.getKey();
+            if (PACKED_ENTRY.equals(path) || path.startsWith(SECTION_PREFIX)) continue;
+            result.put(path, RegionFile.isRegionPath(path) ? unpackRegion(entry.getValue(), cached) : entry.getValue());
+        }
+        return result;
+    }
+
+    public static boolean isPacked(Map<String, byte[]> files) {
+        return files.containsKey(PACKED_ENTRY);
+    }
+
+    // 传输用：子区块数据作为条目放在同一个文件表中
+    public static Map<String, byte[]> packInline(Map<String, byte[]> files) throws IOException {
+        Map<String, byte[]> sections = new LinkedHashMap<>();
+        Map<String, byte[]> result = pack(files, sections);
+        for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+            result.put(SECTION_PREFIX + section.getKey(), section.getValue());
+        }
+        return result;
+    }
+
+    public static Map<String, byte[]> unpackInline(Map<String, byte[]> files) throws IOException {
+        return unpack(files, hash -> files.get(SECTION_PREFIX + hash));
+    }
+
+    private static byte[] packRegion(byte[] data, Map<String, Integer> counts, Map<String, byte[]> sections)
+            throws IOException {
+        byte[][] chunks = RegionFile.readChunks(data);
+        int[] timestamps = RegionFile.readTimestamps(data);
+        boolean changed = false;
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            byte[] nbt = RegionFile.decompressQuietly(chunks[i]);
+            if (nbt == null) continue;
+
+            byte[] skeleton = packChunk(nbt, counts, sections);
+            if (skeleton != null) {
+                chunks[i] = RegionFile.compress(skeleton);
+                changed = true;
+            }
+        }
+        return changed ? RegionFile.write(chunks, timestamps) : data;
+    }
+
+    private static byte[] unpackRegion(byte[] data, SectionSource source) throws IOException {
+        byte[][] chunks = RegionFile.readChunks(data);
+        int[] timestamps = RegionFile.readTimestamps(data);
+        boolean changed = false;
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            byte[] nbt = RegionFile.decompressQuietly(chunks[i]);
+            if (nbt == null) continue;
+
+            byte[] full = unpackChunk(nbt, source);
+            if (full != null) {
+                chunks[i] = RegionFile.compress(full);
+                changed = true;
+            }
+        }
+        return changed ? RegionFile.write(chunks, timestamps) : data;
+    }
+
+    // 子区块列表中的一个元素，哈希不含Y标签
+    private static class Section {
+        final int start;
+        final int end;
+        final int[] y;
+        final byte[] data;
+        final String hash;
+
+        Section(int start, int end, int[] y, byte[] data) {
+            this.start = start;
+            this.end = end;
+            this.y = y;
+            this.data = data;
+            this.hash = WorldHashTree.hash(data);
+        }
+    }
+
+    // 不是标准NBT或没有子区块列表时返回null；小于MIN_SECTION_SIZE的子区块不列出
+    private static List<Section> parseSections(byte[] nbt) {
+        if (nbt == null) return null;
+        try {
+            Cursor c = sectionList(nbt);
+            if (c == null) return null;
+
+            List<Section> list = new ArrayList<>();
+            int count = c.readInt();
+            for (int n = 0; n < count; n++) {
+                int start = c.pos;
+                c.skipPayload(TAG_COMPOUND);
+                int end = c.pos;
+                if (end - start < MIN_SECTION_SIZE) continue;
+
+                int[] y = findTag(nbt, start, "Y");
+                byte[] data;
+                if (y == null) {
+                    data = Arrays.copyOfRange(nbt, start, end);
+                } else {
+                    data = new byte[end - start - (y[1] - y[0])];
+                    System.arraycopy(nbt, start, data, 0, y[0] - start);
+                    System.arraycopy(nbt, y[1], data, y[0] - start, end - y[1]);
+                }
+                list.add(new Section(start, end, y, data));
+            }
+            return list;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // 没有需要替换的子区块时返回null，区块原样保留
+    private static byte[] packChunk(byte[] nbt, Map<String, Integer> counts, Map<String, byte[]> sections)
+            throws IOException {
+        List<Section> list = parseSections(nbt);
+        if (list == null) return null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(nbt.length / 4);
+        int pos = 0;
+        for (Section section : list) {
+            if (counts.getOrDefault(section.hash, 0) < 2) continue;
+
+            out.write(nbt, pos, section.start - pos);
+            sections.putIfAbsent(section.hash, section.data);
+            writeRef(out, section.hash, section.y != null ? Arrays.copyOfRange(nbt, section.y[0], section.y[1]) : null,
+                    section.y != null ? section.y[0] - section.start : 0);
+            pos = section.end;
+        }
+        if (pos == 0) return null;
+        out.write(nbt, pos, nbt.length - pos);
+        return out.toByteArray();
+    }
+
+    // 区块中没有子区块引用时返回null
+    static byte[] unpackChunk(byte[] nbt, SectionSource source) throws IOException {
+        Cursor c;
+        try {
+            c = sectionList(nbt);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        if (c == null) return null;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(nbt.length * 4);
+        int count = c.readInt();
+        out.write(nbt, 0, c.pos);
+        boolean unpacked = false;
+        for (int n = 0; n < count; n++) {
+            int start = c.pos;
+            c.skipPayload(TAG_COMPOUND);
+            Ref ref = readRef(nbt, start);
+            if (ref == null) {
+                out.write(nbt, start, c.pos - start);
+                continue;
+            }
+
+            byte[] section = source.get(ref.hash);
+            if (ref.y != null) {
+                if (ref.yOffset < 0 || ref.yOffset > section.length) throw new IOException("Invalid section reference " + ref.hash);
+                out.write(section, 0, ref.yOffset);
+                out.write(ref.y, 0, ref.y.length);
+                out.write(section, ref.yOffset, section.length - ref.yOffset);
+            } else {
+                out.write(section, 0, section.length);
+            }
+            unpacked = true;
+        }
+        if (!unpacked) return null;
+        out.write(nbt, c.pos, nbt.length - c.pos);
+        return out.toByteArray();
+    }
+
+    // 定位子区块列表（1.18+为根标签下的sections，旧版本为Level下的Sections），返回指向元素数量的游标
+    private static Cursor sectionList(byte[] nbt) throws IOException {
+        Cursor c = new Cursor(nbt, 0);
+        if (c.readByte() != TAG_COMPOUND) return null;
+        c.readName();
+        if (!findSections(c, 0)) return null;
+        return c.readByte() == TAG_COMPOUND ? c : null;
+    }
+
+    private static boolean findSections(Cursor c, int depth) throws IOException {
+        while (true) {
+            byte type = c.readByte();
+            if (type == TAG_END) return false;
+            String name = c.readName();
+            if (type == TAG_LIST && (name.equals("sections") || name.equals("Sections"))) return true;
+            if (type == TAG_COMPOUND && depth == 0 && name.equals("Level")) {
+                if (findSections(c, 1)) return true;
+                continue;
+            }
+            c.skipPayload(type);
+        }
+    }
+
+    // 返回复合标签中指定子标签的字节范围[开始, 结束)
+    private static int[] findTag(byte[] nbt, int start, String tagName) throws IOException {
+        Cursor c = new Cursor(nbt, start);
+        while (true) {
+            int tagStart = c.pos;
+            byte type = c.readByte();
+            if (type == TAG_END) return null;
+            String name = c.readName();
+            c.skipPayload(type);
+            if (name.equals(tagName)) return new int[]{tagStart, c.pos};
+        }
+    }
+
+    private static class Ref {
+        String hash;
+        byte[] y;
+        int yOffset;
+    }
+
+    private static void writeRef(ByteArrayOutputStream buffer, String hash, byte[] y, int yOffset) throws IOException {
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(TAG_STRING);
+        out.writeUTF(REF_HASH);
+        out.writeUTF(hash);
+        if (y != null) {
+            out.writeByte(TAG_BYTE_ARRAY);
+            out.writeUTF(REF_Y);
+            out.writeInt(y.length);
+            out.write(y);
+            out.writeByte(TAG_INT);
+            out.writeUTF(REF_Y_OFFSET);
+            out.writeInt(yOffset);
+        }
+        out.writeByte(TAG_END);
+        out.flush();
+    }
+
+    // 只包含引用标签的复合标签才是引用，否则是未去重的子区块
+    private static Ref readRef(byte[] nbt, int start) throws IOException {
+        Cursor c = new Cursor(nbt, start);
+        Ref ref = new Ref();
+        while (true) {
+            byte type = c.readByte();
+            if (type == TAG_END) return ref.hash != null ? ref : null;
+            String name = c.readName();
+            if (type == TAG_STRING && name.equals(REF_HASH)) {
+                ref.hash = c.readName();
+            } else if (type == TAG_BYTE_ARRAY && name.equals(REF_Y)) {
+                ref.y = c.bytes(c.readInt());
+            } else if (type == TAG_INT && name.equals(REF_Y_OFFSET)) {
+                ref.yOffset = c.readInt();
+            } else {
+                return null;
+            }
+        }
+    }
+
+    // 最小的NBT读取游标，只支持读取名称和跳过标签内容
+    private static class Cursor {
+        private final byte[] data;
+        private int pos;
+
+        Cursor(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        byte readByte() throws IOException {
+            check(1);
+            return data[pos++];
+        }
+
+        int readInt() throws IOException {
+            check(4);
+            int value = ((data[pos] & 0xFF) << 24) | ((data[pos + 1] & 0xFF) << 16)
+                    | ((data[pos + 2] & 0xFF) << 8) | (data[pos + 3] & 0xFF);
+            pos += 4;
+            return value;
+        }
+
+        // 名称只用于比较，按UTF-8解码即可（与NBT的修改版UTF-8在常见字符上一致）
+        String readName() throws IOException {
+            check(2);
+            int length = ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+            pos += 2;
+            check(length);
+            String name = new String(data, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return name;
+        }
+
+        byte[] bytes(int length) throws IOException {
+            if (length < 0) throw new IOException("Invalid NBT length");
+            check(length);
+            byte[] result = Arrays.copyOfRange(data, pos, pos + length);
+            pos += length;
+            return result;
+        }
+
+        void skipPayload(byte type) throws IOException {
+            switch (type) {
+                case 1: skip(1); break;
+                case 2: skip(2); break;
+                case 3: case 5: skip(4); break;
+                case 4: case 6: skip(8); break;
+                case TAG_BYTE_ARRAY: skip(readInt()); break;
+                case TAG_STRING: readName(); break;
+                case TAG_LIST: {
+                    byte elementType = readByte();
+                    int count = readInt();
+                    for (int i = 0; i < count; i++) skipPayload(elementType);
+                    break;
+                }
+                case TAG_COMPOUND: {
+                    byte child;
+                    while ((child = readByte()) != TAG_END) {
+                        readName();
+                        skipPayload(child);
+                    }
+                    break;
+                }
+                case TAG_INT_ARRAY: skip(readInt() * 4L); break;
+                case TAG_LONG_ARRAY: skip(readInt() * 8L); break;
+                default: throw new IOException("Unknown NBT tag " + type);
+            }
+        }
+
+        private void skip(long length) throws IOException {
+            if (length < 0) throw new IOException("Invalid NBT length");
+            check(length);
+            pos += (int) length;
+        }
+
+        private void check(long length) throws IOException {
+            if (pos + length > data.length) throw new IOException("Truncated NBT");
+        }
+    }
+}
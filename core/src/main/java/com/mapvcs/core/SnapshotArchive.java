@@ -0,0 +1,50 @@
+package com.mapvcs.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// 快照ZIP与文件表之间的转换
+@SuppressWarnings("unused")
+public class SnapshotArchive {
+    private static final long FIXED_TIME = 315619200000L;
+
+    public static Map<String, byte[]> read(byte[] snapshot) throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        if (snapshot == null) return files;
+
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(snapshot))) {
+            ZipEntry entry;
+            byte[] buffer = new byte[8192];
+            while ((entry = zis.getNextEntry()) != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                int n;
+                while ((n = zis.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                files.put(entry.getName(), out.toByteArray());
+            }
+        }
+        return files;
+    }
+
+    public static byte[] write(Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                // 固定时间戳，相同内容总是生成相同的字节，便于按哈希去重
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(FIXED_TIME);
+                zos.putNextEntry(zipEntry);
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+}
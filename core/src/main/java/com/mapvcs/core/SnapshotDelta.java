@@ -0,0 +1,158 @@
+package com.mapvcs.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// 文件级快照差异：包含新增/修改的文件，删除的文件路径记录在DELETED_ENTRY中
+// 修改过的区域文件在补丁更小时以"路径 + PATCH_SUFFIX"存放区块级补丁（见RegionPatch）
+// 包含REPLACE_ENTRY的差异是目标提交的完整快照（基准未知时使用），应用时先删除所有文件
+@SuppressWarnings("unused")
+public class SnapshotDelta {
+    public static final String DELETED_ENTRY = ".mapvcs_deleted";
+    public static final String PATCH_SUFFIX = ".mapvcs_patch";
+    public static final String REPLACE_ENTRY = ".mapvcs_replace";
+
+    public static Map<String, byte[]> diff(Map<String, byte[]> base, Map<String, byte[]> target) throws IOException {
+        Map<String, byte[]> delta = new LinkedHashMap<>();
+        for (Map.Entry<String, byte[]> entry : target.entrySet()) {
+            String path = entry.getKey();
+            byte[] old = base.get(path);
+            if (Arrays.equals(old, entry.getValue())) continue;
+
+            if (old != null && RegionFile.isRegionPath(path)) {
+                byte[] patch = RegionPatch.diff(old, entry.getValue());
+                // 区块内容一致，只是重新压缩或移动了位置
+                if (patch == null) continue;
+                if (patch.length < entry.getValue().length) {
+                    delta.put(path + PATCH_SUFFIX, patch);
+                    continue;
+                }
+            }
+            delta.put(path, entry.getValue());
+        }
+
+        Set<String> deleted = new LinkedHashSet<>(base.keySet());
+        deleted.removeAll(target.keySet());
+        setDeleted(delta, deleted);
+        return delta;
+    }
+
+    // 从任意基准得到target的差异
+    public static Map<String, byte[]> replace(Map<String, byte[]> target) {
+        Map<String, byte[]> delta = new LinkedHashMap<>(target);
+        delta.put(REPLACE_ENTRY, new byte[0]);
+        return delta;
+    }
+
+    public static boolean isReplace(Map<String, byte[]> delta) {
+        return delta.containsKey(REPLACE_ENTRY);
+    }
+
+    // 在文件表上原地应用差异；补丁与文件表中的基准文件不符时抛出IOException
+    public static void apply(Map<String, byte[]> files, Map<String, byte[]> delta) throws IOException {
+        if (isReplace(delta)) files.clear();
+        for (String path : getDeleted(delta)) {
+            files.remove(path);
+        }
+        for (Map.Entry<String, byte[]> entry : delta.entrySet()) {
+            String key = entry.getKey();
+            if (isMarker(key)) continue;
+
+            if (isPatch(key)) {
+                String path = patchTarget(key);
+                byte[] base = files.get(path);
+                if (base == null) throw new IOException("Missing base file for patch: " + path);
+                files.put(path, RegionPatch.apply(base, entry.getValue()));
+            } else {
+                files.put(key, entry.getValue());
+            }
+        }
+    }
+
+    // 合并两个相邻差异，结果等价于先应用first再应用second
+    public static Map<String, byte[]> compose(Map<String, byte[]> first, Map<String, byte[]> second) throws IOException {
+        if (isReplace(second)) return new LinkedHashMap<>(second);
+
+        Map<String, byte[]> result = new LinkedHashMap<>(first);
+        result.remove(DELETED_ENTRY);
+        Set<String> deleted = getDeleted(first);
+
+        for (String path : getDeleted(second)) {
+            result.remove(path);
+            result.remove(path + PATCH_SUFFIX);
+            deleted.add(path);
+        }
+        for (Map.Entry<String, byte[]> entry : second.entrySet()) {
+            String key = entry.getKey();
+            if (isMarker(key)) continue;
+
+            if (!isPatch(key)) {
+                result.put(key, entry.getValue());
+                result.remove(key + PATCH_SUFFIX);
+                deleted.remove(key);
+                continue;
+            }
+
+            String path = patchTarget(key);
+            byte[] full = result.get(path);
+            byte[] patch = result.get(key);
+            if (full != null) {
+                result.put(path, RegionPatch.apply(full, entry.getValue()));
+            } else if (patch != null) {
+                result.put(key, RegionPatch.compose(patch, entry.getValue()));
+            } else if (deleted.contains(path) || isReplace(first)) {
+                throw new IOException("Patch applies to missing file: " + path);
+            } else {
+                result.put(key, entry.getValue());
+            }
+        }
+
+        setDeleted(result, deleted);
+        return result;
+    }
+
+    public static boolean isPatch(String key) {
+        return key.endsWith(PATCH_SUFFIX);
+    }
+
+    public static String patchTarget(String key) {
+        return key.substring(0, key.length() - PATCH_SUFFIX.length());
+    }
+
+    // 差异新增或修改的文件路径，不含删除的文件
+    public static Set<String> changedPaths(Map<String, byte[]> delta) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (String key : delta.keySet()) {
+            if (isMarker(key)) continue;
+            paths.add(isPatch(key) ? patchTarget(key) : key);
+        }
+        return paths;
+    }
+
+    private static boolean isMarker(String key) {
+        return DELETED_ENTRY.equals(key) || REPLACE_ENTRY.equals(key);
+    }
+
+    public static Set<String> getDeleted(Map<String, byte[]> delta) {
+        Set<String> deleted = new LinkedHashSet<>();
+        byte[] data = delta.get(DELETED_ENTRY);
+        if (data != null) {
+            for (String path : new String(data, StandardCharsets.UTF_8).split("\n")) {
+                if (!path.isEmpty()) deleted.add(path);
+            }
+        }
+        return deleted;
+    }
+
+    private static void setDeleted(Map<String, byte[]> delta, Set<String> deleted) {
+        delta.remove(DELETED_ENTRY);
+        if (!deleted.isEmpty()) {
+            delta.put(DELETED_ENTRY, String.join("\n", deleted).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
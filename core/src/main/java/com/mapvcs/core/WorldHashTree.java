@@ -0,0 +1,163 @@
+package com.mapvcs.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// 世界状态的哈希树：根 -> 目录（region、DIM-1/region、顶层文件为"."）-> 文件 -> 区块
+// 区域文件的哈希是其区块哈希表的哈希，区块哈希基于解压后的NBT，重新压缩不影响结果
+public class WorldHashTree {
+    public static final String TOP_LEVEL = ".";
+    public static final int HASH_SIZE = 20;
+
+    // path -> 文件哈希
+    private final SortedMap<String, String> files = new TreeMap<>();
+
+    public void put(String path, String hash) {
+        files.put(path, hash);
+    }
+
+    public String get(String path) {
+        return files.get(path);
+    }
+
+    public SortedMap<String, String> getFiles() {
+        return files;
+    }
+
+    public String rootHash() {
+        return hashEntries(groupHashes());
+    }
+
+    public Map<String, String> groupHashes() {
+        Map<String, String> hashes = new TreeMap<>();
+        for (String group : groups()) {
+            hashes.put(group, hashEntries(children(group)));
+        }
+        return hashes;
+    }
+
+    public Set<String> groups() {
+        Set<String> groups = new TreeSet<>();
+        for (String path : files.keySet()) {
+            groups.add(groupOf(path));
+        }
+        return groups;
+    }
+
+    public Map<String, String> children(String group) {
+        Map<String, String> children = new TreeMap<>();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            if (groupOf(entry.getKey()).equals(group)) {
+                children.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return children;
+    }
+
+    public static String groupOf(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? TOP_LEVEL : path.substring(0, slash);
+    }
+
+    // 每行"路径\t哈希"
+    public byte[] serialize() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : files.entrySet()) {
+            sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static WorldHashTree parse(byte[] data) {
+        WorldHashTree tree = new WorldHashTree();
+        for (String line : new String(data, StandardCharsets.UTF_8).split("\n")) {
+            int tab = line.lastIndexOf('\t');
+            if (tab > 0) tree.put(line.substring(0, tab), line.substring(tab + 1));
+        }
+        return tree;
+    }
+
+    // 区域文件的区块哈希表：CHUNKS * HASH_SIZE字节，不存在的区块为全零
+    public static byte[] chunkHashes(byte[] regionData) {
+        byte[][] chunks = RegionFile.readChunks(regionData);
+        byte[] table = new byte[RegionFile.CHUNKS * HASH_SIZE];
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            if (chunks[i] == null) continue;
+
+            byte[] nbt = RegionFile.decompressQuietly(chunks[i]);
+            System.arraycopy(sha1(nbt != null ? nbt : chunks[i]), 0, table, i * HASH_SIZE, HASH_SIZE);
+        }
+        return table;
+    }
+
+    public static List<Integer> diffChunks(byte[] a, byte[] b) {
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            if (a == null || b == null) {
+                changed.add(i);
+                continue;
+            }
+            for (int j = i * HASH_SIZE; j < (i + 1) * HASH_SIZE; j++) {
+                if (a[j] != b[j]) {
+                    changed.add(i);
+                    break;
+                }
+            }
+        }
+        return changed;
+    }
+
+    public static String hash(byte[] data) {
+        return hex(sha1(data));
+    }
+
+    // 区域文件返回区块哈希表的哈希，其余文件直接哈希内容
+    public static String hashFile(String path, byte[] data, Map<String, byte[]> chunkTables) {
+        if (!RegionFile.isRegionPath(path)) return hash(data);
+
+        byte[] table = chunkHashes(data);
+        String hash = hash(table);
+        if (chunkTables != null) chunkTables.put(hash, table);
+        return hash;
+    }
+
+    public static WorldHashTree build(Map<String, byte[]> files, Map<String, byte[]> chunkTables) {
+        WorldHashTree tree = new WorldHashTree();
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            tree.put(entry.getKey(), hashFile(entry.getKey(), entry.getValue(), chunkTables));
+        }
+        return tree;
+    }
+
+    private static String hashEntries(Map<String, String> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            sb.append(entry.getKey()).append('\0').append(entry.getValue()).append('\n');
+        }
+        return hash(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] sha1(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
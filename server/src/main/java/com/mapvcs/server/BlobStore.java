@@ -0,0 +1,13 @@
+package com.mapvcs.server;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+// 按内容哈希存取的数据块存储，快照、差异和区块哈希表都保存在这里
+public interface BlobStore {
+    // 不存在时返回null
+    byte[] get(String hash) throws SQLException;
+
+    // 返回时数据已落盘，已存在的哈希直接跳过
+    void putAll(Map<String, byte[]> blobs) throws SQLException;
+}
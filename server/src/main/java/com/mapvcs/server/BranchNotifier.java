@@ -0,0 +1,49 @@
+package com.mapvcs.server;
+
+import com.mapvcs.core.MapVCSProtocol.BranchUpdate;
+import io.javalin.http.sse.SseClient;
+import io.netty.channel.Channel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+// 按分支维护订阅者，分支头移动时主动推送给TCP连接和SSE客户端
+public class BranchNotifier implements MapRepository.BranchListener {
+    private final Map<String, ChannelGroup> channels = new ConcurrentHashMap<>();
+    private final Map<String, Set<SseClient>> sseClients = new ConcurrentHashMap<>();
+
+    public void subscribe(String branch, Channel channel) {
+        // ChannelGroup会在连接关闭时自动移除该连接
+        channels.computeIfAbsent(branch, b -> new DefaultChannelGroup(GlobalEventExecutor.INSTANCE)).add(channel);
+    }
+
+    public void subscribe(String branch, SseClient client) {
+        Set<SseClient> clients = sseClients.computeIfAbsent(branch, b -> new CopyOnWriteArraySet<>());
+        clients.add(client);
+        client.onClose(() -> clients.remove(client));
+    }
+
+    @Override
+    public void onHeadMoved(String branch, String commitId) {
+        ChannelGroup group = channels.get(branch);
+        if (group != null) {
+            group.writeAndFlush(new BranchUpdate(branch, commitId));
+        }
+
+        Set<SseClient> clients = sseClients.get(branch);
+        if (clients != null) {
+            for (SseClient client : clients) {
+                try {
+                    client.sendEvent("update", commitId);
+                } catch (Exception e) {
+                    clients.remove(client);
+                }
+            }
+        }
+    }
+}
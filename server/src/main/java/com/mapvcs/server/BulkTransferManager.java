@@ -0,0 +1,202 @@
+package com.mapvcs.server;
+
+import com.mapvcs.core.MapVCSProtocol.BaseMessage;
+import com.mapvcs.core.MapVCSProtocol.DataChunk;
+import com.mapvcs.core.MapVCSProtocol.ErrorResponse;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 限制同时进行的大块传输数量，超出的请求排队等待；
+// TCP传输按通道可写状态分块发送，慢客户端不会让服务器在直接内存中堆积整个快照
+public class BulkTransferManager {
+    private static final AttributeKey<Transfer> TRANSFER_KEY = AttributeKey.valueOf("mapvcs.transfer");
+
+    private final int maxConcurrent;
+    private final int chunkSize;
+    private final long stallTimeoutMillis;
+    private final Executor loadExecutor;
+    private final Queue<Runnable> waiting = new ArrayDeque<>();
+    private int active;
+
+    // loadExecutor用于执行PayloadLoader，载荷可能需要由关键帧和差异还原，不能在EventLoop中进行
+    public BulkTransferManager(int maxConcurrent, int chunkSize, long stallTimeoutMillis, Executor loadExecutor) {
+        this.maxConcurrent = maxConcurrent;
+        this.chunkSize = chunkSize;
+        this.stallTimeoutMillis = stallTimeoutMillis;
+        this.loadExecutor = loadExecutor;
+    }
+
+    public interface PayloadLoader {
+        // 获得传输名额后在loadExecutor中调用，返回null表示已自行响应（例如出错）
+        Payload load() throws Exception;
+    }
+
+    public interface BlockingTransfer {
+        void run() throws Exception;
+    }
+
+    public static class Payload {
+        final BaseMessage header;
+        final byte[] data;
+
+        // header中的载荷字段应为空，并设置payloadSize = data.length
+        public Payload(BaseMessage header, byte[] data) {
+            this.header = header;
+            this.data = data;
+        }
+    }
+
+    public void submit(Channel channel, PayloadLoader loader) {
+        // 同一连接同时只允许一个传输，避免数据块交错
+        if (!channel.attr(TRANSFER_KEY).compareAndSet(null, new Transfer(channel))) {
+            channel.writeAndFlush(new ErrorResponse("Another transfer is in progress"));
+            return;
+        }
+        acquire(() -> loadExecutor.execute(() -> load(channel, loader)));
+    }
+
+    // HTTP下载在Jetty线程中同步执行，同样占用传输名额
+    public void runBlocking(BlockingTransfer transfer) throws Exception {
+        AtomicBoolean claimed = new AtomicBoolean();
+        CountDownLatch admitted = new CountDownLatch(1);
+        acquire(() -> {
+            if (claimed.compareAndSet(false, true)) admitted.countDown();
+            else release();
+        });
+
+        try {
+            admitted.await();
+        } catch (InterruptedException e) {
+            if (!claimed.compareAndSet(false, true)) release();
+            throw e;
+        }
+
+        try {
+            transfer.run();
+        } finally {
+            release();
+        }
+    }
+
+    public void resume(Channel channel) {
+        Transfer transfer = channel.attr(TRANSFER_KEY).get();
+        if (transfer != null && transfer.data != null) {
+            transfer.pump();
+        }
+    }
+
+    private void load(Channel channel, PayloadLoader loader) {
+        Transfer transfer = channel.attr(TRANSFER_KEY).get();
+        Payload payload = null;
+        try {
+            if (channel.isActive()) payload = loader.load();
+        } catch (Throwable t) {
+            // 出错时同样回到EventLoop结束传输，归还名额
+            channel.writeAndFlush(new ErrorResponse("Transfer failed: " + t.getMessage()));
+        }
+        // 发送数据和结束传输都在通道的EventLoop中进行
+        Payload loaded = payload;
+        channel.eventLoop().execute(() -> start(transfer, loaded));
+    }
+
+    private void start(Transfer transfer, Payload payload) {
+        Channel channel = transfer.channel;
+        if (payload == null || !channel.isActive()) {
+            transfer.finish();
+            return;
+        }
+
+        channel.closeFuture().addListener(transfer.closeListener);
+        channel.writeAndFlush(payload.header);
+        if (payload.data == null || payload.data.length == 0) {
+            transfer.finish();
+            return;
+        }
+        transfer.data = payload.data;
+        transfer.lastProgress = System.currentTimeMillis();
+        // 长时间停止读取的客户端会一直占用名额，超时后断开连接
+        transfer.stallCheck = channel.eventLoop().scheduleAtFixedRate(() -> {
+            if (System.currentTimeMillis() - transfer.lastProgress > stallTimeoutMillis) {
+                System.err.println("Closing stalled transfer to " + channel.remoteAddress());
+                channel.close();
+            }
+        }, stallTimeoutMillis / 2, stallTimeoutMillis / 2, TimeUnit.MILLISECONDS);
+        transfer.pump();
+    }
+
+    private void acquire(Runnable onAdmitted) {
+        synchronized (this) {
+            if (active >= maxConcurrent) {
+                waiting.add(onAdmitted);
+                return;
+            }
+            active++;
+        }
+        onAdmitted.run();
+    }
+
+    private void release() {
+        Runnable next;
+        synchronized (this) {
+            next = waiting.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+        }
+        // 名额直接转交给下一个等待者
+        next.run();
+    }
+
+    // 以下方法都在通道的EventLoop中执行
+    private class Transfer {
+        final Channel channel;
+        final ChannelFutureListener closeListener = f -> finish();
+        byte[] data;
+        int offset;
+        boolean finished;
+        long lastProgress;
+        ScheduledFuture<?> stallCheck;
+
+        Transfer(Channel channel) {
+            this.channel = channel;
+        }
+
+        void pump() {
+            if (finished || offset >= data.length) return;
+
+            while (!finished && offset < data.length && channel.isWritable()) {
+                int length = Math.min(chunkSize, data.length - offset);
+                byte[] chunk = Arrays.copyOfRange(data, offset, offset + length);
+                offset += length;
+
+                ChannelFuture future = channel.writeAndFlush(new DataChunk(chunk, offset == data.length));
+                future.addListener(f -> lastProgress = System.currentTimeMillis());
+                if (offset == data.length) {
+                    future.addListener(f -> finish());
+                }
+            }
+        }
+
+        void finish() {
+            if (finished) return;
+            finished = true;
+            data = null;
+            if (stallCheck != null) stallCheck.cancel(false);
+            channel.closeFuture().removeListener(closeListener);
+            channel.attr(TRANSFER_KEY).compareAndSet(this, null);
+            release();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.mapvcs.server;
+
+import com.mapvcs.core.RegionFile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static com.mapvcs.core.MapVCSProtocol.*;
+
+// 提交时对比父快照，生成每个提交的文件/区块级变更索引
+public class ChangeIndexer {
+
+    public static List<FileChange> compute(Map<String, byte[]> base, Map<String, byte[]> current) throws IOException {
+        List<FileChange> changes = new ArrayList<>();
+
+        for (Map.Entry<String, byte[]> entry : current.entrySet()) {
+            String path = entry.getKey();
+            byte[] oldData = base.get(path);
+            if (oldData == null) {
+                changes.add(diff(path, ChangeType.ADDED, null, entry.getValue()));
+            } else if (!Arrays.equals(oldData, entry.getValue())) {
+                FileChange change = diff(path, ChangeType.MODIFIED, oldData, entry.getValue());
+                // 区域文件只是重新压缩或移动了区块时不算修改
+                if (change.getChunks() == null || !change.getChunks().isEmpty()) changes.add(change);
+            }
+        }
+
+        for (Map.Entry<String, byte[]> entry : base.entrySet()) {
+            if (!current.containsKey(entry.getKey())) {
+                changes.add(diff(entry.getKey(), ChangeType.DELETED, entry.getValue(), null));
+            }
+        }
+        return changes;
+    }
+
+    private static FileChange diff(String path, ChangeType type, byte[] oldData, byte[] newData) throws IOException {
+        if (!RegionFile.isRegionPath(path)) {
+            long size = newData != null ? newData.length : oldData.length;
+            return new FileChange(path, type, size, null);
+        }
+
+        byte[][] oldChunks = RegionFile.readChunks(oldData);
+        byte[][] newChunks = RegionFile.readChunks(newData);
+        List<Integer> changed = new ArrayList<>();
+        long bytesChanged = 0;
+
+        for (int i = 0; i < RegionFile.CHUNKS; i++) {
+            if (Arrays.equals(oldChunks[i], newChunks[i])) continue;
+            // 由差异链还原的父快照中区块经过重新压缩，按NBT内容比较；无法解压时原始字节不同即视为修改
+            if (oldChunks[i] != null && newChunks[i] != null) {
+                byte[] oldNbt = RegionFile.decompressQuietly(oldChunks[i]);
+                if (oldNbt != null && Arrays.equals(oldNbt, RegionFile.decompressQuietly(newChunks[i]))) continue;
+            }
+            changed.add(i);
+            bytesChanged += newChunks[i] != null ? newChunks[i].length : oldChunks[i].length;
+        }
+        return new FileChange(path, type, bytesChanged, changed);
+    }
+}
@@ -0,0 +1,341 @@
+package com.mapvcs.server;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static com.mapvcs.core.MapVCSProtocol.*;
+
+// 组提交：调用方在自己的线程中完成快照解析和差异计算，写入请求排队后由单独的写线程
+// 在最多delayMillis的等待内合并为一个事务，共用一次fsync；事务提交后才向各调用方确认
+public class GroupCommitWriter {
+    private static final long WRITE_TIMEOUT_MILLIS = Long.getLong("mapvcs.commitTimeout", 300000);
+
+    private final Connection conn;
+    private final long delayNanos;
+    private final int maxBatch;
+    private final Consumer<Commit> onCommitted;
+    // 为null时数据块与元数据在同一事务中写入本数据库
+    private final BlobStore blobStore;
+    private final BlockingQueue<PendingCommit> queue = new LinkedBlockingQueue<>();
+    // 正在准备或等待写入的提交数，没有其他提交在途时不必等待
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // 预编译语句在写线程中反复使用
+    private final PreparedStatement insertBlob;
+    private final PreparedStatement insertCommit;
+    private final PreparedStatement insertChain;
+    private final PreparedStatement insertChange;
+    private final PreparedStatement insertTree;
+    private final PreparedStatement updateBranch;
+    private final PreparedStatement updateBranchIf;
+    private final PreparedStatement selectBranch;
+    private final PreparedStatement insertBranch;
+
+    // 一个待写入的提交，所有数据都已计算完成
+    static class PendingCommit {
+        final Commit commit;
+        final int depth;
+        final String fullBlob;
+        final String deltaBlob;
+        final String reverseBlob;
+        // 哈希 -> 数据，包括快照/差异以及区块哈希表
+        final Map<String, byte[]> blobs;
+        final List<FileChange> changes;
+        final String rootHash;
+        final byte[] treeData;
+        // 为true时只有父提交是当前分支头才写入（客户端推送），否则无条件移动分支头（副本重放）
+        final boolean fastForward;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingCommit(Commit commit, int depth, String fullBlob, String deltaBlob, String reverseBlob,
+                      Map<String, byte[]> blobs, List<FileChange> changes, String rootHash, byte[] treeData,
+                      boolean fastForward) {
+            this.commit = commit;
+            this.depth = depth;
+            this.fullBlob = fullBlob;
+            this.deltaBlob = deltaBlob;
+            this.reverseBlob = reverseBlob;
+            this.blobs = blobs;
+            this.changes = changes;
+            this.rootHash = rootHash;
+            this.treeData = treeData;
+            this.fastForward = fastForward;
+        }
+    }
+
+    public GroupCommitWriter(String dbPath, long delayMillis, int maxBatch, BlobStore blobStore,
+                             Consumer<Commit> onCommitted) throws SQLException {
+        this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
+        this.delayNanos = TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        this.maxBatch = Math.max(1, maxBatch);
+        this.blobStore = blobStore;
+        this.onCommitted = onCommitted;
+
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA busy_timeout = 10000");
+            // 事务提交时同步落盘，确认即持久
+            stmt.execute("PRAGMA synchronous = FULL");
+        }
+        conn.setAutoCommit(false);
+
+        insertBlob = conn.prepareStatement("INSERT OR IGNORE INTO blobs(hash, data) VALUES(?,?)");
+        insertCommit = conn.prepareStatement(
+                "INSERT INTO commits(id, branch, parent, timestamp, author, message) VALUES(?,?,?,?,?,?)");
+        insertChain = conn.prepareStatement(
+                "INSERT INTO snapshot_chain(commit_id, depth, full_blob, delta_blob, reverse_blob) VALUES(?,?,?,?,?)");
+        insertChange = conn.prepareStatement(
+                "INSERT INTO commit_changes(commit_id, path, change_type, bytes_changed, chunks) VALUES(?,?,?,?,?)");
+        insertTree = conn.prepareStatement(
+                "INSERT OR IGNORE INTO commit_trees(commit_id, root_hash, data) VALUES(?,?,?)");
+        updateBranch = conn.prepareStatement("UPDATE branches SET head_commit = ? WHERE name = ?");
+        updateBranchIf = conn.prepareStatement("UPDATE branches SET head_commit = ? WHERE name = ? AND head_commit IS ?");
+        selectBranch = conn.prepareStatement("SELECT head_commit FROM branches WHERE name = ?");
+        insertBranch = conn.prepareStatement("INSERT INTO branches(name, head_commit) VALUES(?,?)");
+
+        Thread thread = new Thread(this::run, "mapvcs-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 调用方开始准备提交时调用，与end()成对使用
+    public void begin() {
+        inFlight.incrementAndGet();
+    }
+
+    public void end() {
+        inFlight.decrementAndGet();
+    }
+
+    // 阻塞到所在的组事务提交为止，最多等待WRITE_TIMEOUT
+    public void write(PendingCommit pending) throws SQLException {
+        queue.add(pending);
+        try {
+            pending.done.get(WRITE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for commit " + pending.commit.getId(), e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SQLException) throw (SQLException) e.getCause();
+            throw new SQLException("Failed to write commit " + pending.commit.getId(), e.getCause());
+        } catch (TimeoutException e) {
+            // 仍在队列中说明写线程没有取走它，可以确定没有写入
+            boolean dropped = queue.remove(pending);
+            throw new SQLException("Timed out waiting for commit " + pending.commit.getId()
+                    + (dropped ? ", not written" : ", outcome unknown"), e);
+        }
+    }
+
+    private void run() {
+        List<PendingCommit> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                // 还有其他提交在准备时最多等待delayNanos，期间到达的请求并入同一事务
+                long deadline = System.nanoTime() + delayNanos;
+                while (batch.size() < maxBatch && (batch.size() < inFlight.get() || !queue.isEmpty())) {
+                    long wait = deadline - System.nanoTime();
+                    PendingCommit next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                flush(batch);
+            } catch (Throwable t) {
+                // 写线程退出后所有推送都会一直等待，出错时只让本组失败
+                failAll(batch, t);
+            }
+            batch.clear();
+        }
+    }
+
+    private void flush(List<PendingCommit> batch) {
+        try {
+            writeBatch(batch);
+            conn.commit();
+            committed(batch);
+            return;
+        } catch (SQLException | RuntimeException e) {
+            rollback();
+            if (batch.size() == 1) {
+                batch.get(0).done.completeExceptionally(e);
+                return;
+            }
+        } catch (Throwable t) {
+            // 例如大批量数据导致内存不足，逐个重试多半仍会失败
+            rollback();
+            failAll(batch, t);
+            return;
+        }
+
+        // 组内有失败的提交（例如ID重复）时逐个重试，不影响其他调用方
+        for (PendingCommit pending : batch) {
+            try {
+                writeBatch(Collections.singletonList(pending));
+                conn.commit();
+                committed(Collections.singletonList(pending));
+            } catch (Throwable t) {
+                rollback();
+                pending.done.completeExceptionally(t);
+            }
+        }
+    }
+
+    // 已完成的提交不受影响
+    private static void failAll(List<PendingCommit> batch, Throwable t) {
+        for (PendingCommit pending : batch) {
+            pending.done.completeExceptionally(t);
+        }
+    }
+
+    private void writeBatch(List<PendingCommit> batch) throws SQLException {
+        clearBatches();
+
+        Map<String, byte[]> blobs = new HashMap<>();
+        for (PendingCommit pending : batch) {
+            blobs.putAll(pending.blobs);
+        }
+        if (blobStore != null) {
+            // 外部存储的数据块先落盘，元数据事务失败只会留下无人引用的数据块
+            blobStore.putAll(blobs);
+        } else {
+            for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+                insertBlob.setString(1, blob.getKey());
+                insertBlob.setBytes(2, blob.getValue());
+                insertBlob.addBatch();
+            }
+        }
+
+        // 同一分支在组内多次提交时以最后一个为分支头；expected为快进推送要求的组事务之前的分支头
+        Map<String, String> heads = new LinkedHashMap<>();
+        Map<String, String> expected = new HashMap<>();
+        for (PendingCommit pending : batch) {
+            Commit commit = pending.commit;
+            if (pending.fastForward) {
+                if (heads.containsKey(commit.getBranch())) {
+                    String head = heads.get(commit.getBranch());
+                    if (!Objects.equals(head, commit.getParent())) throw nonFastForward(commit, head);
+                } else if (!expected.containsKey(commit.getBranch())) {
+                    expected.put(commit.getBranch(), commit.getParent());
+                }
+            }
+
+            insertCommit.setString(1, commit.getId());
+            insertCommit.setString(2, commit.getBranch());
+            insertCommit.setString(3, commit.getParent());
+            insertCommit.setLong(4, commit.getTimestamp());
+            insertCommit.setString(5, commit.getAuthor());
+            insertCommit.setString(6, commit.getMessage());
+            insertCommit.addBatch();
+
+            insertChain.setString(1, commit.getId());
+            insertChain.setInt(2, pending.depth);
+            insertChain.setString(3, pending.fullBlob);
+            insertChain.setString(4, pending.deltaBlob);
+            insertChain.setString(5, pending.reverseBlob);
+            insertChain.addBatch();
+
+            for (FileChange change : pending.changes) {
+                insertChange.setString(1, commit.getId());
+                insertChange.setString(2, change.getPath());
+                insertChange.setString(3, change.getChangeType().name());
+                insertChange.setLong(4, change.getBytesChanged());
+                insertChange.setBytes(5, change.getChunks() != null ? SQLiteMapRepository.toBitmap(change.getChunks()) : null);
+                insertChange.addBatch();
+            }
+
+            insertTree.setString(1, commit.getId());
+            insertTree.setString(2, pending.rootHash);
+            insertTree.setBytes(3, pending.treeData);
+            insertTree.addBatch();
+
+            heads.remove(commit.getBranch());
+            heads.put(commit.getBranch(), commit.getId());
+        }
+
+        insertBlob.executeBatch();
+        insertCommit.executeBatch();
+        insertChain.executeBatch();
+        insertChange.executeBatch();
+        insertTree.executeBatch();
+
+        for (Map.Entry<String, String> head : heads.entrySet()) {
+            String branch = head.getKey();
+            int updated;
+            if (expected.containsKey(branch)) {
+                updateBranchIf.setString(1, head.getValue());
+                updateBranchIf.setString(2, branch);
+                updateBranchIf.setString(3, expected.get(branch));
+                updated = updateBranchIf.executeUpdate();
+            } else {
+                updateBranch.setString(1, head.getValue());
+                updateBranch.setString(2, branch);
+                updated = updateBranch.executeUpdate();
+            }
+            if (updated > 0) continue;
+
+            // 分支已存在说明分支头已被其他推送移动
+            selectBranch.setString(1, branch);
+            try (ResultSet rs = selectBranch.executeQuery()) {
+                if (rs.next()) {
+                    throw nonFastForward(findCommit(batch, branch, expected.get(branch)), rs.getString(1));
+                }
+            }
+            insertBranch.setString(1, branch);
+            insertBranch.setString(2, head.getValue());
+            insertBranch.executeUpdate();
+        }
+    }
+
+    static SQLException nonFastForward(Commit commit, String head) {
+        return new SQLException("Non-fast-forward push to branch " + commit.getBranch() + ": head is " + head
+                + " but commit " + commit.getId() + " is based on " + commit.getParent() + ", pull first");
+    }
+
+    // 组内基于expected的第一个快进提交
+    private static Commit findCommit(List<PendingCommit> batch, String branch, String parent) {
+        for (PendingCommit pending : batch) {
+            Commit commit = pending.commit;
+            if (pending.fastForward && commit.getBranch().equals(branch) && Objects.equals(commit.getParent(), parent)) {
+                return commit;
+            }
+        }
+        return batch.get(0).commit;
+    }
+
+    private void committed(List<PendingCommit> batch) {
+        for (PendingCommit pending : batch) {
+            pending.done.complete(null);
+        }
+        // 按写入顺序通知，订阅者最后看到的是真正的分支头
+        for (PendingCommit pending : batch) {
+            try {
+                onCommitted.accept(pending.commit);
+            } catch (RuntimeException e) {
+                System.err.println("Commit listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void clearBatches() throws SQLException {
+        insertBlob.clearBatch();
+        insertCommit.clearBatch();
+        insertChain.clearBatch();
+        insertChange.clearBatch();
+        insertTree.clearBatch();
+    }
+
+    private void rollback() {
+        try {
+            conn.rollback();
+        } catch (SQLException e) {
+            System.err.println("Rollback failed: " + e.getMessage());
+        }
+    }
+}
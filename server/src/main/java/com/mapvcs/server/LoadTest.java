@@ -0,0 +1,482 @@
+package com.mapvcs.server;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import com.mapvcs.core.MapVCSDecoder;
+import com.mapvcs.core.MapVCSEncoder;
+import com.mapvcs.core.MapVCSProtocol.*;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 负载测试：模拟多个客户端通过回环地址并发发送拉取、历史查询、HTTP快照下载和推送，
+// 统计吞吐量、延迟分位数和服务器内存占用。未指定loadtest.server时生成合成仓库并在子进程中启动服务器
+@SuppressWarnings("all")
+public class LoadTest {
+    private static final int CLIENTS = Integer.getInteger("loadtest.clients", 16);
+    private static final int DURATION = Integer.getInteger("loadtest.duration", 30);
+    // 操作权重，格式为"操作:权重"，逗号分隔
+    private static final String MIX = System.getProperty("loadtest.mix", "pull:6,history:3,snapshot:1");
+    private static final String SERVER = System.getProperty("loadtest.server");
+    private static final int TCP_PORT = Integer.getInteger("loadtest.tcpPort", 9090);
+    private static final int HTTP_PORT = Integer.getInteger("loadtest.httpPort", 9091);
+    private static final String BRANCH = System.getProperty("loadtest.branch", "main");
+    private static final int COMMITS = Integer.getInteger("loadtest.commits", 50);
+    private static final int REGIONS = Integer.getInteger("loadtest.regions", 8);
+    private static final int CHUNKS = Integer.getInteger("loadtest.chunks", 256);
+    private static final int CHUNK_SIZE = Integer.getInteger("loadtest.chunkSize", 8192);
+    // 推送操作使用的合成世界规模，每个客户端推送到自己的分支
+    private static final int PUSH_REGIONS = Integer.getInteger("loadtest.pushRegions", 1);
+    private static final int PUSH_CHUNKS = Integer.getInteger("loadtest.pushChunks", 64);
+    private static final String SERVER_HEAP = System.getProperty("loadtest.serverHeap", "1g");
+    // .csv追加一行每种操作的结果，其他扩展名写出JSON
+    private static final String OUTPUT = System.getProperty("loadtest.output", "loadtest-results.json");
+    private static final long REQUEST_TIMEOUT = 120000;
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    public static void main(String[] args) throws Exception {
+        String host = SERVER != null ? SERVER : "127.0.0.1";
+        Process server = SERVER == null ? startServer() : null;
+        EventLoopGroup group = new NioEventLoopGroup();
+        MemorySampler memory = new MemorySampler(host);
+
+        try {
+            List<String> commits = loadCommitIds(host);
+            if (commits.isEmpty()) {
+                throw new IllegalStateException("Branch " + BRANCH + " has no commits");
+            }
+
+            Map<String, Integer> weights = parseMix(MIX);
+            Map<String, OpStats> stats = new TreeMap<>();
+            for (String op : weights.keySet()) stats.put(op, new OpStats());
+
+            System.out.println("Running " + CLIENTS + " clients for " + DURATION + "s, mix " + MIX);
+            memory.start();
+            long start = System.currentTimeMillis();
+            long deadline = start + DURATION * 1000L;
+
+            ExecutorService pool = Executors.newFixedThreadPool(CLIENTS);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                int index = i;
+                futures.add(pool.submit(() -> {
+                    runClient(group, host, index, commits, weights, stats, deadline);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            pool.shutdown();
+            long elapsed = System.currentTimeMillis() - start;
+            memory.stop();
+
+            Result result = new Result(elapsed, stats, memory);
+            result.print();
+            result.export(new File(OUTPUT));
+            System.out.println("Results written to " + new File(OUTPUT).getAbsolutePath());
+        } finally {
+            memory.stop();
+            group.shutdownGracefully();
+            if (server != null) server.destroy();
+        }
+    }
+
+    private static void runClient(EventLoopGroup group, String host, int index, List<String> commits,
+                                  Map<String, Integer> weights, Map<String, OpStats> stats,
+                                  long deadline) throws Exception {
+        Random random = new Random(index);
+        LoadClient client = new LoadClient(group, host, TCP_PORT);
+        SyntheticWorld pushWorld = null;
+        String pushBranch = "loadtest-" + index + "-" + System.currentTimeMillis();
+        String pushParent = null;
+        int pushCount = 0;
+        try {
+            while (System.currentTimeMillis() < deadline) {
+                String op = pick(weights, random);
+                String commitId = commits.get(random.nextInt(commits.size()));
+                long begin = System.nanoTime();
+                long bytes;
+                try {
+                    switch (op) {
+                        case "pull":
+                            PullRequest pull = new PullRequest();
+                            pull.setBranch(BRANCH);
+                            pull.setSinceCommit(commitId);
+                            bytes = client.request(pull);
+                            break;
+                        case "history":
+                            HistoryRequest history = new HistoryRequest();
+                            history.setBranch(BRANCH);
+                            history.setLimit(20);
+                            bytes = client.request(history);
+                            break;
+                        case "push":
+                            if (pushWorld == null) pushWorld = new SyntheticWorld(PUSH_REGIONS, PUSH_CHUNKS, CHUNK_SIZE, index);
+                            else pushWorld.mutate();
+                            // 快照在计时前生成，只统计传输和服务器端持久化
+                            PushRequest push = new PushRequest();
+                            String id = pushBranch + "-" + pushCount++;
+                            push.setCommit(new Commit(id, pushBranch, pushParent, System.currentTimeMillis(), "loadtest", "Load test push"));
+                            push.setSnapshot(pushWorld.snapshot());
+                            begin = System.nanoTime();
+                            client.request(push);
+                            bytes = push.getSnapshot().length;
+                            pushParent = id;
+                            break;
+                        case "snapshot":
+                            bytes = download("http://" + host + ":" + HTTP_PORT + "/api/snapshot/" + commitId);
+                            break;
+                        default:
+                            throw new IllegalArgumentException("Unknown operation: " + op);
+                    }
+                    stats.get(op).record(System.nanoTime() - begin, bytes);
+                } catch (Exception e) {
+                    stats.get(op).errors.incrementAndGet();
+                    if (!client.isActive()) client = client.reconnect();
+                }
+            }
+        } finally {
+            client.close();
+        }
+    }
+
+    private static Process startServer() throws Exception {
+        File dir = Files.createTempDirectory("mapvcs-loadtest").toFile();
+        File db = new File(dir, "mapvcs.db");
+        System.out.println("Generating synthetic repository: " + COMMITS + " commits, " + REGIONS + " regions x "
+                + CHUNKS + " chunks of " + CHUNK_SIZE + " bytes");
+        new SyntheticWorld(REGIONS, CHUNKS, CHUNK_SIZE, 42).populate(new SQLiteMapRepository(db.getPath()), BRANCH, COMMITS);
+
+        // 在独立进程中运行服务器，内存统计不受负载生成器影响
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-Xmx" + SERVER_HEAP,
+                "-Dmapvcs.db=" + db.getPath(),
+                "-Dmapvcs.tcpPort=" + TCP_PORT,
+                "-Dmapvcs.httpPort=" + HTTP_PORT,
+                "-cp", System.getProperty("java.class.path"),
+                MapVCServer.class.getName())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "server.log"))
+                .start();
+
+        long deadline = System.currentTimeMillis() + 30000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                fetch("http://127.0.0.1:" + HTTP_PORT + "/api/stats");
+                System.out.println("Server started, log: " + new File(dir, "server.log"));
+                return process;
+            } catch (IOException e) {
+                if (!process.isAlive()) break;
+                Thread.sleep(200);
+            }
+        }
+        process.destroy();
+        throw new IOException("Server failed to start, see " + new File(dir, "server.log"));
+    }
+
+    private static List<String> loadCommitIds(String host) throws IOException {
+        String json = new String(fetch("http://" + host + ":" + HTTP_PORT + "/api/history/" + BRANCH
+                + "?limit=" + COMMITS), StandardCharsets.UTF_8);
+        List<String> ids = new ArrayList<>();
+        for (Commit commit : GSON.fromJson(json, Commit[].class)) {
+            ids.add(commit.getId());
+        }
+        return ids;
+    }
+
+    private static Map<String, Integer> parseMix(String mix) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1]) : 1;
+            if (weight > 0) weights.put(kv[0], weight);
+        }
+        return weights;
+    }
+
+    private static String pick(Map<String, Integer> weights, Random random) {
+        int total = 0;
+        for (int w : weights.values()) total += w;
+        int n = random.nextInt(total);
+        for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+            n -= entry.getValue();
+            if (n < 0) return entry.getKey();
+        }
+        throw new IllegalStateException();
+    }
+
+    private static long download(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setReadTimeout((int) REQUEST_TIMEOUT);
+        try (InputStream in = conn.getInputStream()) {
+            byte[] buffer = new byte[65536];
+            long total = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) total += n;
+            return total;
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static byte[] fetch(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(10000);
+        try (InputStream in = conn.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+            return out.toByteArray();
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    // 单个模拟客户端的TCP连接，同一时间只有一个请求在途
+    private static class LoadClient extends SimpleChannelInboundHandler<BaseMessage> {
+        private final EventLoopGroup group;
+        private final String host;
+        private final int port;
+        private final Channel channel;
+        private CompletableFuture<Long> pending;
+        private long received;
+        private long expected;
+
+        LoadClient(EventLoopGroup group, String host, int port) throws InterruptedException {
+            this.group = group;
+            this.host = host;
+            this.port = port;
+            this.channel = new Bootstrap().group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(new MapVCSDecoder(), new MapVCSEncoder(), LoadClient.this);
+                        }
+                    })
+                    .connect(host, port).sync().channel();
+        }
+
+        // 返回响应的载荷字节数
+        long request(BaseMessage message) throws Exception {
+            CompletableFuture<Long> future = new CompletableFuture<>();
+            channel.eventLoop().execute(() -> {
+                pending = future;
+                received = 0;
+                expected = 0;
+            });
+            channel.writeAndFlush(message);
+            return future.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isActive() {
+            return channel.isActive();
+        }
+
+        LoadClient reconnect() throws InterruptedException {
+            close();
+            return new LoadClient(group, host, port);
+        }
+
+        void close() {
+            channel.close();
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, BaseMessage msg) {
+            if (pending == null) return;
+
+            if (msg instanceof ErrorResponse) {
+                complete(new IOException(((ErrorResponse) msg).getMessage()));
+            } else if (msg instanceof PullResponse && ((PullResponse) msg).getPayloadSize() > 0) {
+                // 流式响应的头部，等待数据块
+                expected = ((PullResponse) msg).getPayloadSize();
+            } else if (msg instanceof DataChunk) {
+                received += ((DataChunk) msg).getData().length;
+                if (((DataChunk) msg).isLast()) complete(null);
+            } else if (msg instanceof HistoryResponse || msg instanceof PullResponse || msg instanceof PushResponse) {
+                complete(null);
+            }
+        }
+
+        private void complete(Exception error) {
+            CompletableFuture<Long> future = pending;
+            pending = null;
+            if (error != null) future.completeExceptionally(error);
+            else future.complete(received);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (pending != null) complete(new IOException("Connection closed"));
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    private static class OpStats {
+        final List<Long> latencies = new ArrayList<>();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        void record(long nanos, long payload) {
+            synchronized (latencies) {
+                latencies.add(nanos);
+            }
+            bytes.addAndGet(payload);
+        }
+    }
+
+    // 每500毫秒通过/api/stats采样服务器内存
+    private static class MemorySampler {
+        private final String url;
+        private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        long peakHeapUsed;
+        long peakDirectUsed;
+        long heapMax;
+        int samples;
+
+        MemorySampler(String host) {
+            this.url = "http://" + host + ":" + HTTP_PORT + "/api/stats";
+        }
+
+        void start() {
+            executor.scheduleAtFixedRate(this::sample, 0, 500, TimeUnit.MILLISECONDS);
+        }
+
+        void stop() {
+            executor.shutdownNow();
+        }
+
+        private synchronized void sample() {
+            try {
+                Map<String, Object> stats = GSON.fromJson(new String(fetch(url), StandardCharsets.UTF_8),
+                        new TypeToken<Map<String, Object>>() {}.getType());
+                peakHeapUsed = Math.max(peakHeapUsed, ((Number) stats.get("heapUsed")).longValue());
+                peakDirectUsed = Math.max(peakDirectUsed, ((Number) stats.get("nettyDirectUsed")).longValue());
+                heapMax = ((Number) stats.get("heapMax")).longValue();
+                samples++;
+            } catch (Exception e) {
+                // 采样失败不影响测试
+            }
+        }
+    }
+
+    private static class Result {
+        final long timestamp = System.currentTimeMillis();
+        final int clients = CLIENTS;
+        final int durationSeconds = DURATION;
+        final String mix = MIX;
+        final String server = SERVER != null ? SERVER : "synthetic";
+        final long elapsedMillis;
+        final double throughput;
+        final Map<String, OpResult> operations = new TreeMap<>();
+        final long peakHeapUsedBytes;
+        final long peakNettyDirectBytes;
+        final long heapMaxBytes;
+
+        Result(long elapsedMillis, Map<String, OpStats> stats, MemorySampler memory) {
+            this.elapsedMillis = elapsedMillis;
+            long total = 0;
+            for (Map.Entry<String, OpStats> entry : stats.entrySet()) {
+                OpResult op = new OpResult(entry.getValue(), elapsedMillis);
+                operations.put(entry.getKey(), op);
+                total += op.count;
+            }
+            this.throughput = total * 1000.0 / elapsedMillis;
+            synchronized (memory) {
+                this.peakHeapUsedBytes = memory.peakHeapUsed;
+                this.peakNettyDirectBytes = memory.peakDirectUsed;
+                this.heapMaxBytes = memory.heapMax;
+            }
+        }
+
+        void print() {
+            System.out.printf("%-10s %8s %7s %10s %10s %9s %9s %9s %9s%n",
+                    "operation", "count", "errors", "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+            for (Map.Entry<String, OpResult> entry : operations.entrySet()) {
+                OpResult op = entry.getValue();
+                System.out.printf("%-10s %8d %7d %10.1f %10.2f %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(),
+                        op.count, op.errors, op.throughput, op.megabytesPerSecond, op.p50, op.p99, op.p999, op.max);
+            }
+            System.out.printf("Total throughput: %.1f req/s%n", throughput);
+            System.out.printf("Server memory: peak heap %d MB / %d MB, peak netty direct %d MB%n",
+                    peakHeapUsedBytes >> 20, heapMaxBytes >> 20, peakNettyDirectBytes >> 20);
+        }
+
+        void export(File file) throws IOException {
+            if (!file.getName().endsWith(".csv")) {
+                Files.write(file.toPath(), GSON.toJson(this).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            boolean header = !file.exists();
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8))) {
+                if (header) {
+                    out.println("timestamp,server,clients,duration,mix,operation,count,errors,rps,mbps,p50,p99,p999,max,peak_heap,peak_direct");
+                }
+                for (Map.Entry<String, OpResult> entry : operations.entrySet()) {
+                    OpResult op = entry.getValue();
+                    out.printf(Locale.ROOT, "%d,%s,%d,%d,\"%s\",%s,%d,%d,%.2f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,%d%n",
+                            timestamp, server, clients, durationSeconds, mix, entry.getKey(), op.count, op.errors,
+                            op.throughput, op.megabytesPerSecond, op.p50, op.p99, op.p999, op.max,
+                            peakHeapUsedBytes, peakNettyDirectBytes);
+                }
+            }
+        }
+    }
+
+    private static class OpResult {
+        final long count;
+        final long errors;
+        final long bytes;
+        final double throughput;
+        final double megabytesPerSecond;
+        final double p50;
+        final double p99;
+        final double p999;
+        final double max;
+
+        OpResult(OpStats stats, long elapsedMillis) {
+            long[] sorted;
+            synchronized (stats.latencies) {
+                sorted = new long[stats.latencies.size()];
+                for (int i = 0; i < sorted.length; i++) sorted[i] = stats.latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            count = sorted.length;
+            errors = stats.errors.get();
+            bytes = stats.bytes.get();
+            throughput = count * 1000.0 / elapsedMillis;
+            megabytesPerSecond = bytes / 1048576.0 / (elapsedMillis / 1000.0);
+            p50 = percentile(sorted, 0.50);
+            p99 = percentile(sorted, 0.99);
+            p999 = percentile(sorted, 0.999);
+            max = sorted.length > 0 ? sorted[sorted.length - 1] / 1e6 : 0;
+        }
+
+        // 最近秩法，单位毫秒
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) return 0;
+            int index = (int) Math.ceil(p * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+        }
+    }
+}
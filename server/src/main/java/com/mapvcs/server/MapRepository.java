@@ -1,13 +1,31 @@
 package com.mapvcs.server;
 
 import com.mapvcs.core.MapVCSProtocol.Commit;
+import com.mapvcs.core.MapVCSProtocol.FileChange;
+import com.mapvcs.core.WorldHashTree;
 import java.sql.SQLException;
 import java.util.List;
 
 public interface MapRepository {
     void saveCommit(Commit commit, byte[] snapshot) throws SQLException;
+    // 客户端推送只允许快进：分支已存在时父提交必须是当前分支头，否则抛出SQLException
+    void pushCommit(Commit commit, byte[] snapshot) throws SQLException;
     Commit getCommit(String commitId) throws SQLException;
     byte[] getSnapshot(String commitId) throws SQLException;
+    byte[] getDelta(String fromCommit, String toCommit) throws SQLException;
     List<Commit> getCommitHistory(String branch, int limit) throws SQLException;
     String getHeadCommit(String branch) throws SQLException;
+    // commitId为null时从第一个提交开始；commitId不在仓库中时返回null
+    List<Commit> getCommitsAfter(String commitId, int limit) throws SQLException;
+    String getLastCommitId() throws SQLException;
+    List<FileChange> getCommitChanges(String commitId) throws SQLException;
+    WorldHashTree getTree(String commitId) throws SQLException;
+    byte[] getChunkHashes(String regionHash) throws SQLException;
+    List<Commit> getCommitsTouching(String branch, String dimension, int minChunkX, int minChunkZ,
+                                    int maxChunkX, int maxChunkZ, int limit) throws SQLException;
+    void addBranchListener(BranchListener listener);
+
+    interface BranchListener {
+        void onHeadMoved(String branch, String commitId);
+    }
 }
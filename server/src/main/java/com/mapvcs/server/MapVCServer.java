@@ -5,29 +5,73 @@ import com.mapvcs.core.MapVCSEncoder;
 import io.javalin.Javalin;
 import io.javalin.http.staticfiles.Location;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.mapvcs.core.MapVCSProtocol.Commit;
+import static com.mapvcs.core.MapVCSProtocol.TreeResponse;
 
 @SuppressWarnings("all")
 public class MapVCServer {
-    private static final int TCP_PORT = 9090;
-    private static final int HTTP_PORT = 9091;
-    private static final MapRepository repo = new SQLiteMapRepository();
+    // 通过-D参数配置，便于在同一台机器上运行主服务器和多个只读副本
+    private static final int TCP_PORT = Integer.getInteger("mapvcs.tcpPort", 9090);
+    private static final int HTTP_PORT = Integer.getInteger("mapvcs.httpPort", 9091);
+    private static final String PRIMARY_URL = System.getProperty("mapvcs.primary");
+    private static final long REPLICATION_INTERVAL = Long.getLong("mapvcs.replicationInterval", 1000);
+    private static final int WRITE_BUFFER_LOW = Integer.getInteger("mapvcs.writeBufferLow", 256 * 1024);
+    private static final int WRITE_BUFFER_HIGH = Integer.getInteger("mapvcs.writeBufferHigh", 1024 * 1024);
+    private static final int MAX_BULK_TRANSFERS = Integer.getInteger("mapvcs.maxBulkTransfers", 4);
+    private static final int TRANSFER_CHUNK_SIZE = Integer.getInteger("mapvcs.transferChunkSize", 256 * 1024);
+    private static final long TRANSFER_STALL_TIMEOUT = Long.getLong("mapvcs.transferStallTimeout", 60000);
+    private static final long GROUP_COMMIT_DELAY = Long.getLong("mapvcs.groupCommitDelay", 2);
+    private static final int GROUP_COMMIT_MAX_BATCH = Integer.getInteger("mapvcs.groupCommitMaxBatch", 64);
+    private static final int PUSH_THREADS = Integer.getInteger("mapvcs.pushThreads", 8);
+    private static final long TRANSFER_CACHE_SIZE = Long.getLong("mapvcs.transferCacheSize", 256L * 1024 * 1024);
+    // 区域历史查询最多展开的区域文件数
+    private static final int MAX_AREA_REGIONS = Integer.getInteger("mapvcs.maxAreaRegions", 4096);
+    // 逗号分隔的分片文件路径，设置后数据块按哈希前缀分散存储
+    private static final String BLOB_SHARDS = System.getProperty("mapvcs.blobShards");
+    private static final MapRepository repo = BLOB_SHARDS != null
+            ? new ShardedMapRepository(System.getProperty("mapvcs.db", "mapvcs.db"),
+                    Arrays.asList(BLOB_SHARDS.split("\\s*,\\s*")), GROUP_COMMIT_DELAY, GROUP_COMMIT_MAX_BATCH)
+            : new SQLiteMapRepository(System.getProperty("mapvcs.db", "mapvcs.db"),
+                    GROUP_COMMIT_DELAY, GROUP_COMMIT_MAX_BATCH);
     private static final File storageDir = new File("mapvcs_storage");
+    private static final BranchNotifier notifier = new BranchNotifier();
+    // 读取快照和计算差异在独立线程中进行，不阻塞EventLoop；同时进行的传输不超过名额数，线程数与名额数相同
+    private static final ExecutorService transferLoader = Executors.newFixedThreadPool(MAX_BULK_TRANSFERS);
+    private static final BulkTransferManager transfers = new BulkTransferManager(MAX_BULK_TRANSFERS, TRANSFER_CHUNK_SIZE,
+            TRANSFER_STALL_TIMEOUT, transferLoader);
+    private static final TransferCache transferCache = new TransferCache(TRANSFER_CACHE_SIZE);
+    // 推送在独立线程中解析快照并等待组提交确认，不阻塞EventLoop；只读副本不接受推送
+    private static final ExecutorService pushExecutor = PRIMARY_URL == null ? Executors.newFixedThreadPool(PUSH_THREADS) : null;
 
     public static void main(String[] args) throws Exception {
         if (!storageDir.exists()) storageDir.mkdirs();
+        repo.addBranchListener(notifier);
 
         startTCPServer();
         startHTTPServer();
+
+        if (PRIMARY_URL != null) {
+            new ReplicationTailer(repo, PRIMARY_URL, REPLICATION_INTERVAL).start();
+        }
     }
 
     private static void startTCPServer() {
@@ -38,6 +82,8 @@ public class MapVCServer {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
                     .channel(NioServerSocketChannel.class)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                            new WriteBufferWaterMark(WRITE_BUFFER_LOW, WRITE_BUFFER_HIGH))
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(SocketChannel ch) {
@@ -49,7 +95,7 @@ public class MapVCServer {
                             ch.pipeline().addLast(
                                     new MapVCSDecoder(),
                                     new MapVCSEncoder(),
-                                    new ServerHandler(repo, storageDir)
+                                    new ServerHandler(repo, storageDir, notifier, transfers, pushExecutor, transferCache)
                             );
                         }
                     });
@@ -79,11 +125,106 @@ public class MapVCServer {
 
         app.get("/api/snapshot/{commitId}", ctx -> {
             String commitId = ctx.pathParam("commitId");
-            byte[] snapshot = repo.getSnapshot(commitId);
-            if (snapshot == null) ctx.status(404);
-            else {
-                ctx.header("Content-Disposition", "attachment; filename=snapshot_" + commitId + ".zip");
-                ctx.contentType("application/zip").result(snapshot);
+            transfers.runBlocking(() -> {
+                byte[] snapshot = repo.getSnapshot(commitId);
+                if (snapshot == null) ctx.status(404);
+                else {
+                    ctx.header("Content-Disposition", "attachment; filename=snapshot_" + commitId + ".zip");
+                    ctx.contentType("application/zip");
+                    // 在名额内直接写出，避免响应体在名额释放后才发送
+                    ctx.res.getOutputStream().write(snapshot);
+                }
+            });
+        });
+
+        // 从from提交到to提交的差异，from为空时返回完整快照
+        app.get("/api/delta/{commitId}", ctx -> {
+            String commitId = ctx.pathParam("commitId");
+            transfers.runBlocking(() -> {
+                byte[] delta = repo.getDelta(ctx.queryParam("from"), commitId);
+                if (delta == null) ctx.status(404);
+                else {
+                    ctx.contentType("application/zip");
+                    ctx.res.getOutputStream().write(delta);
+                }
+            });
+        });
+
+        // 供只读副本按写入顺序追踪提交日志
+        app.get("/api/replication/commits", ctx -> {
+            String after = ctx.queryParam("after");
+            int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(100);
+            List<Commit> commits = repo.getCommitsAfter(after, limit);
+            if (commits == null) {
+                // 副本的游标不在主服务器上（例如主服务器从备份恢复），需要重新初始化副本
+                ctx.status(409).result("Unknown replication cursor: " + after);
+                return;
+            }
+            ctx.json(commits);
+        });
+
+        app.get("/api/changes/{commitId}", ctx -> {
+            ctx.json(repo.getCommitChanges(ctx.pathParam("commitId")));
+        });
+
+        // 服务器运行状态，供负载测试采样内存占用
+        app.get("/api/stats", ctx -> {
+            MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("heapUsed", heap.getUsed());
+            stats.put("heapCommitted", heap.getCommitted());
+            stats.put("heapMax", heap.getMax());
+            stats.put("nettyDirectUsed", PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory());
+            stats.put("threads", ManagementFactory.getThreadMXBean().getThreadCount());
+            ctx.json(stats);
+        });
+
+        // 哈希树的一层：?path=为空时返回根和各目录
+        app.get("/api/tree/{commitId}", ctx -> {
+            TreeResponse tree = ServerHandler.describeTree(repo, ctx.pathParam("commitId"), ctx.queryParam("path"));
+            if (tree == null) {
+                ctx.status(404);
+                return;
+            }
+            ctx.json(tree);
+        });
+
+        // 单个区块的修改历史
+        app.get("/api/chunk-history/{branch}", ctx -> {
+            int x = ctx.queryParamAsClass("x", Integer.class).get();
+            int z = ctx.queryParamAsClass("z", Integer.class).get();
+            String dimension = ctx.queryParamAsClass("dim", String.class).getOrDefault("");
+            int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(10);
+            ctx.json(repo.getCommitsTouching(ctx.pathParam("branch"), dimension, x, z, x, z, limit));
+        });
+
+        // 修改过指定区块范围的提交
+        app.get("/api/area-history/{branch}", ctx -> {
+            int x1 = ctx.queryParamAsClass("x1", Integer.class).get();
+            int z1 = ctx.queryParamAsClass("z1", Integer.class).get();
+            int x2 = ctx.queryParamAsClass("x2", Integer.class).get();
+            int z2 = ctx.queryParamAsClass("z2", Integer.class).get();
+            String dimension = ctx.queryParamAsClass("dim", String.class).getOrDefault("");
+            int limit = ctx.queryParamAsClass("limit", Integer.class).getOrDefault(10);
+            // 查询按区域文件展开，范围过大时拒绝
+            long regions = ((long) (Math.max(x1, x2) >> 5) - (Math.min(x1, x2) >> 5) + 1)
+                    * ((long) (Math.max(z1, z2) >> 5) - (Math.min(z1, z2) >> 5) + 1);
+            if (regions > MAX_AREA_REGIONS) {
+                ctx.status(400).result("Area too large: " + regions + " regions, at most " + MAX_AREA_REGIONS);
+                return;
+            }
+            ctx.json(repo.getCommitsTouching(ctx.pathParam("branch"), dimension,
+                    Math.min(x1, x2), Math.min(z1, z2), Math.max(x1, x2), Math.max(z1, z2), limit));
+        });
+
+        app.sse("/api/events/{branch}", client -> {
+            String branch = client.ctx.pathParam("branch");
+            notifier.subscribe(branch, client);
+            try {
+                String head = repo.getHeadCommit(branch);
+                if (head != null) client.sendEvent("update", head);
+            } catch (Exception e) {
+                client.sendEvent("error", e.getMessage());
             }
         });
 
@@ -0,0 +1,110 @@
+package com.mapvcs.server;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.mapvcs.core.MapVCSProtocol.Commit;
+import com.mapvcs.core.SnapshotArchive;
+import com.mapvcs.core.SnapshotDelta;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// 只读副本：按写入顺序追踪主服务器的提交日志，并把快照复制到本地仓库
+public class ReplicationTailer {
+    private static final int BATCH_SIZE = 100;
+
+    private final MapRepository repo;
+    private final String primaryUrl;
+    private final long intervalMillis;
+    private final Gson gson = new Gson();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "mapvcs-replication");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ReplicationTailer(MapRepository repo, String primaryUrl, long intervalMillis) {
+        this.repo = repo;
+        this.primaryUrl = primaryUrl.endsWith("/") ? primaryUrl.substring(0, primaryUrl.length() - 1) : primaryUrl;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        executor.scheduleWithFixedDelay(this::poll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Replicating from " + primaryUrl);
+    }
+
+    private void poll() {
+        try {
+            List<Commit> commits;
+            do {
+                String after = repo.getLastCommitId();
+                String query = "?limit=" + BATCH_SIZE + (after != null ? "&after=" + URLEncoder.encode(after, "UTF-8") : "");
+                commits = gson.fromJson(new String(fetch("/api/replication/commits" + query), "UTF-8"),
+                        new TypeToken<List<Commit>>() {}.getType());
+
+                for (Commit commit : commits) {
+                    repo.saveCommit(commit, fetchSnapshot(commit));
+                }
+            } while (commits.size() == BATCH_SIZE);
+        } catch (UnknownCursorException e) {
+            // 本地提交日志与主服务器分叉，继续追踪只会反复失败，由管理员清空副本数据库后重新启动
+            System.err.println("Replication stopped: " + e.getMessage()
+                    + ". Re-bootstrap this replica from an empty database.");
+            executor.shutdown();
+        } catch (Exception e) {
+            System.err.println("Replication failed: " + e.getMessage());
+        }
+    }
+
+    // 父提交已在本地时只传输差异，再在本地还原出完整快照
+    private byte[] fetchSnapshot(Commit commit) throws IOException, SQLException {
+        String id = URLEncoder.encode(commit.getId(), "UTF-8");
+        byte[] parentSnapshot = commit.getParent() != null ? repo.getSnapshot(commit.getParent()) : null;
+        if (parentSnapshot == null) {
+            return fetch("/api/snapshot/" + id);
+        }
+
+        Map<String, byte[]> files = SnapshotArchive.read(parentSnapshot);
+        byte[] delta = fetch("/api/delta/" + id + "?from=" + URLEncoder.encode(commit.getParent(), "UTF-8"));
+        SnapshotDelta.apply(files, SnapshotArchive.read(delta));
+        return SnapshotArchive.write(files);
+    }
+
+    private static class UnknownCursorException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnknownCursorException(String message) {
+            super(message);
+        }
+    }
+
+    private byte[] fetch(String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(primaryUrl + path).openConnection();
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(60000);
+        try {
+            if (conn.getResponseCode() == 409) {
+                throw new UnknownCursorException("Primary does not know the last replicated commit");
+            }
+            if (conn.getResponseCode() != 200) {
+                throw new IOException("HTTP " + conn.getResponseCode() + " for " + path);
+            }
+            try (InputStream in = conn.getInputStream()) {
+                return IOUtils.toByteArray(in);
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+}
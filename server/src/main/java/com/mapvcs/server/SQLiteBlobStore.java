@@ -0,0 +1,62 @@
+package com.mapvcs.server;
+
+import java.sql.*;
+import java.util.Map;
+
+// 单个SQLite文件中的blobs表，连接独占，读写在本分片内串行
+public class SQLiteBlobStore implements BlobStore {
+    private final String path;
+    private final Connection conn;
+    private final PreparedStatement select;
+    private final PreparedStatement insert;
+
+    public SQLiteBlobStore(String path) throws SQLException {
+        this.path = path;
+        this.conn = DriverManager.getConnection("jdbc:sqlite:" + path);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA busy_timeout = 10000");
+            stmt.execute("PRAGMA synchronous = FULL");
+            stmt.execute("CREATE TABLE IF NOT EXISTS blobs (" +
+                    "hash TEXT PRIMARY KEY, " +
+                    "data BLOB)");
+        }
+        select = conn.prepareStatement("SELECT data FROM blobs WHERE hash = ?");
+        insert = conn.prepareStatement("INSERT OR IGNORE INTO blobs(hash, data) VALUES(?,?)");
+    }
+
+    @Override
+    public synchronized byte[] get(String hash) throws SQLException {
+        select.setString(1, hash);
+        try (ResultSet rs = select.executeQuery()) {
+            return rs.next() ? rs.getBytes("data") : null;
+        }
+    }
+
+    @Override
+    public synchronized void putAll(Map<String, byte[]> blobs) throws SQLException {
+        if (blobs.isEmpty()) return;
+
+        conn.setAutoCommit(false);
+        try {
+            for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+                insert.setString(1, blob.getKey());
+                insert.setBytes(2, blob.getValue());
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            insert.clearBatch();
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
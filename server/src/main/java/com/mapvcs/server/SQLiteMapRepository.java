@@ -3,16 +3,51 @@ package com.mapvcs.server;
 import java.sql.*;
 import java.util.*;
 import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import com.mapvcs.core.RegionFile;
+import com.mapvcs.core.SnapshotArchive;
+import com.mapvcs.core.SectionDedup;
+import com.mapvcs.core.SnapshotDelta;
+import com.mapvcs.core.WorldHashTree;
 import static com.mapvcs.core.MapVCSProtocol.*;
 
 public class SQLiteMapRepository implements MapRepository {
     private static final String DB_PATH = "mapvcs.db";
+    // 每隔KEYFRAME_INTERVAL个提交保存一次完整快照，其余只保存与父提交的正向/反向差异
+    private static final int KEYFRAME_INTERVAL = 16;
+    // 检出路径超过该步数时不再逐个合并差异，直接对比两端重建出的快照
+    private static final int MAX_COMPOSE_STEPS = KEYFRAME_INTERVAL * 2;
+    // 单条语句的参数个数上限，旧版SQLite默认为999
+    private static final int MAX_QUERY_PARAMS = 500;
+    private static final long GROUP_COMMIT_DELAY = 2;
+    private static final int GROUP_COMMIT_MAX_BATCH = 64;
     private Connection conn;
+    private final GroupCommitWriter writer;
+    // 为null时数据块保存在本数据库的blobs表中
+    private final BlobStore blobStore;
+    private final List<BranchListener> branchListeners = new CopyOnWriteArrayList<>();
 
     public SQLiteMapRepository() {
+        this(DB_PATH);
+    }
+
+    public SQLiteMapRepository(String dbPath) {
+        this(dbPath, GROUP_COMMIT_DELAY, GROUP_COMMIT_MAX_BATCH);
+    }
+
+    // groupCommitDelay为组提交的最长等待时间（毫秒），groupCommitMaxBatch为单个事务最多包含的提交数
+    public SQLiteMapRepository(String dbPath, long groupCommitDelay, int groupCommitMaxBatch) {
+        this(dbPath, groupCommitDelay, groupCommitMaxBatch, null);
+    }
+
+    protected SQLiteMapRepository(String dbPath, long groupCommitDelay, int groupCommitMaxBatch, BlobStore blobStore) {
+        this.blobStore = blobStore;
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + DB_PATH);
+            conn = DriverManager.getConnection("jdbc:sqlite:" + dbPath);
             initDatabase();
+            writer = new GroupCommitWriter(dbPath, groupCommitDelay, groupCommitMaxBatch, blobStore, this::notifyHeadMoved);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
@@ -20,6 +55,10 @@ public class SQLiteMapRepository implements MapRepository {
 
     private void initDatabase() throws SQLException {
         try (Statement stmt = conn.createStatement()) {
+            // WAL模式下写线程提交时读取不被阻塞
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA busy_timeout = 10000");
+
             // 创建表结构
             stmt.execute("CREATE TABLE IF NOT EXISTS commits (" +
                     "id TEXT PRIMARY KEY, " +
@@ -37,47 +76,110 @@ public class SQLiteMapRepository implements MapRepository {
             stmt.execute("CREATE TABLE IF NOT EXISTS branches (" +
                     "name TEXT PRIMARY KEY, " +
                     "head_commit TEXT)");
+
+            // 每个提交的变更索引，chunks为区域内变更区块的位图
+            stmt.execute("CREATE TABLE IF NOT EXISTS commit_changes (" +
+                    "commit_id TEXT NOT NULL, " +
+                    "path TEXT NOT NULL, " +
+                    "change_type TEXT NOT NULL, " +
+                    "bytes_changed INTEGER, " +
+                    "chunks BLOB, " +
+                    "PRIMARY KEY(commit_id, path), " +
+                    "FOREIGN KEY(commit_id) REFERENCES commits(id))");
+
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_commit_changes_path ON commit_changes(path)");
+
+            // 按内容哈希存储的快照和差异数据
+            stmt.execute("CREATE TABLE IF NOT EXISTS blobs (" +
+                    "hash TEXT PRIMARY KEY, " +
+                    "data BLOB)");
+
+            // 关键帧保存full_blob；delta_blob为相对父提交的正向差异，reverse_blob为回到父提交的反向差异
+            // 旧版本写入的提交没有这里的记录，快照仍保存在snapshots表中
+            stmt.execute("CREATE TABLE IF NOT EXISTS snapshot_chain (" +
+                    "commit_id TEXT PRIMARY KEY, " +
+                    "depth INTEGER NOT NULL, " +
+                    "full_blob TEXT, " +
+                    "delta_blob TEXT, " +
+                    "reverse_blob TEXT, " +
+                    "FOREIGN KEY(commit_id) REFERENCES commits(id))");
+
+            // 每个提交的世界哈希树，区域文件的区块哈希表以其哈希为键存入blobs
+            stmt.execute("CREATE TABLE IF NOT EXISTS commit_trees (" +
+                    "commit_id TEXT PRIMARY KEY, " +
+                    "root_hash TEXT NOT NULL, " +
+                    "data BLOB, " +
+                    "FOREIGN KEY(commit_id) REFERENCES commits(id))");
         }
     }
 
     @Override
     public void saveCommit(Commit commit, byte[] snapshot) throws SQLException {
-        conn.setAutoCommit(false);
-        try (PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO commits(id, branch, parent, timestamp, author, message) VALUES(?,?,?,?,?,?)")) {
-
-            ps.setString(1, commit.getId());
-            ps.setString(2, commit.getBranch());
-            ps.setString(3, commit.getParent());
-            ps.setLong(4, commit.getTimestamp());
-            ps.setString(5, commit.getAuthor());
-            ps.setString(6, commit.getMessage());
-            ps.executeUpdate();
-        }
+        save(commit, snapshot, false);
+    }
 
-        try (PreparedStatement ps = conn.prepareStatement(
-                "INSERT INTO snapshots(commit_id, data) VALUES(?,?)")) {
+    @Override
+    public void pushCommit(Commit commit, byte[] snapshot) throws SQLException {
+        // 提前拒绝明显落后的推送，省去差异计算；最终以写入事务中的条件更新为准
+        String head = getHeadCommit(commit.getBranch());
+        if (head != null && !head.equals(commit.getParent())) {
+            throw GroupCommitWriter.nonFastForward(commit, head);
+        }
+        save(commit, snapshot, true);
+    }
 
-            ps.setString(1, commit.getId());
-            ps.setBytes(2, snapshot);
-            ps.executeUpdate();
+    private void save(Commit commit, byte[] snapshot, boolean fastForward) throws SQLException {
+        writer.begin();
+        try {
+            prepareAndWrite(commit, snapshot, fastForward);
+        } finally {
+            writer.end();
         }
+    }
 
-        try (PreparedStatement ps = conn.prepareStatement(
-                "UPDATE branches SET head_commit = ? WHERE name = ?")) {
-
-            ps.setString(1, commit.getId());
-            ps.setString(2, commit.getBranch());
-            if (ps.executeUpdate() == 0) {
-                try (PreparedStatement insertPs = conn.prepareStatement(
-                        "INSERT INTO branches(name, head_commit) VALUES(?,?)")) {
-                    insertPs.setString(1, commit.getBranch());
-                    insertPs.setString(2, commit.getId());
-                    insertPs.executeUpdate();
-                }
+    private void prepareAndWrite(Commit commit, byte[] snapshot, boolean fastForward) throws SQLException {
+        ChainEntry parentEntry = commit.getParent() != null ? getChainEntry(commit.getParent()) : null;
+        boolean hasParent = parentEntry != null || getLegacySnapshot(commit.getParent()) != null;
+        int depth = parentEntry != null ? parentEntry.depth + 1 : (hasParent ? 1 : 0);
+        if (depth >= KEYFRAME_INTERVAL) depth = 0;
+
+        List<FileChange> changes;
+        WorldHashTree tree;
+        Map<String, byte[]> chunkTables = new HashMap<>();
+        Map<String, byte[]> sections = new HashMap<>();
+        byte[] deltaData = null;
+        byte[] reverseData = null;
+        byte[] keyframe = null;
+        try {
+            Map<String, byte[]> parentFiles = hasParent ? loadFiles(commit.getParent()) : new HashMap<>();
+            Map<String, byte[]> files = SnapshotArchive.read(snapshot);
+            changes = ChangeIndexer.compute(parentFiles, files);
+            tree = WorldHashTree.build(files, chunkTables);
+            if (hasParent) {
+                deltaData = SnapshotArchive.write(SnapshotDelta.diff(parentFiles, files));
+                reverseData = SnapshotArchive.write(SnapshotDelta.diff(files, parentFiles));
+            }
+            if (depth == 0) {
+                keyframe = packKeyframe(files, sections);
             }
+        } catch (IOException e) {
+            throw new SQLException("Failed to index changes of commit " + commit.getId(), e);
+        }
+
+        // 计算在调用方线程中完成，写入交给组提交线程
+        Map<String, byte[]> blobs = new HashMap<>(chunkTables);
+        blobs.putAll(sections);
+        String fullBlob = keyframe != null ? addBlob(blobs, keyframe) : null;
+        String deltaBlob = deltaData != null ? addBlob(blobs, deltaData) : null;
+        String reverseBlob = reverseData != null ? addBlob(blobs, reverseData) : null;
+        writer.write(new GroupCommitWriter.PendingCommit(commit, depth, fullBlob, deltaBlob, reverseBlob,
+                blobs, changes, tree.rootHash(), tree.serialize(), fastForward));
+    }
+
+    private void notifyHeadMoved(Commit commit) {
+        for (BranchListener listener : branchListeners) {
+            listener.onHeadMoved(commit.getBranch(), commit.getId());
         }
-        conn.commit();
     }
 
     @Override
@@ -88,14 +190,7 @@ public class SQLiteMapRepository implements MapRepository {
             ps.setString(1, commitId);
             ResultSet rs = ps.executeQuery();
             if (rs.next()) {
-                return new Commit(
-                        rs.getString("id"),
-                        rs.getString("branch"),
-                        rs.getString("parent"),
-                        rs.getLong("timestamp"),
-                        rs.getString("author"),
-                        rs.getString("message")
-                );
+                return readCommit(rs);
             }
         }
         return null;
@@ -103,16 +198,61 @@ public class SQLiteMapRepository implements MapRepository {
 
     @Override
     public byte[] getSnapshot(String commitId) throws SQLException {
-        try (PreparedStatement ps = conn.prepareStatement(
-                "SELECT data FROM snapshots WHERE commit_id = ?")) {
+        ChainEntry entry = getChainEntry(commitId);
+        if (entry == null) return getLegacySnapshot(commitId);
+        try {
+            if (entry.fullBlob != null) {
+                byte[] data = getBlob(entry.fullBlob);
+                Map<String, byte[]> files = SnapshotArchive.read(data);
+                return SectionDedup.isPacked(files) ? SnapshotArchive.write(unpackSections(files)) : data;
+            }
+            return SnapshotArchive.write(loadFiles(commitId));
+        } catch (IOException e) {
+            throw new SQLException("Failed to rebuild snapshot of commit " + commitId, e);
+        }
+    }
 
-            ps.setString(1, commitId);
-            ResultSet rs = ps.executeQuery();
-            if (rs.next()) {
-                return rs.getBytes("data");
+    @Override
+    public byte[] getDelta(String fromCommit, String toCommit) throws SQLException {
+        if (getCommit(toCommit) == null) return null;
+        try {
+            // 基准未知时发送完整快照，并标记应用方删除快照以外的文件
+            if (fromCommit == null || getCommit(fromCommit) == null) {
+                byte[] snapshot = getSnapshot(toCommit);
+                return snapshot != null ? SnapshotArchive.write(SnapshotDelta.replace(SnapshotArchive.read(snapshot))) : null;
+            }
+
+            // 沿from向上收集祖先，再从to向上找到最近公共祖先
+            List<String> down = new ArrayList<>();
+            Map<String, Integer> downIndex = new HashMap<>();
+            for (String id = fromCommit; id != null && down.size() <= MAX_COMPOSE_STEPS; id = getParent(id)) {
+                downIndex.put(id, down.size());
+                down.add(id);
+            }
+
+            List<String> up = new ArrayList<>();
+            String common = toCommit;
+            while (common != null && !downIndex.containsKey(common) && up.size() <= MAX_COMPOSE_STEPS) {
+                up.add(common);
+                common = getParent(common);
+            }
+
+            if (common == null || !downIndex.containsKey(common) || downIndex.get(common) + up.size() > MAX_COMPOSE_STEPS) {
+                return SnapshotArchive.write(SnapshotDelta.diff(loadFiles(fromCommit), loadFiles(toCommit)));
             }
+
+            // 先用反向差异回退到公共祖先，再用正向差异前进到目标提交
+            Map<String, byte[]> delta = new HashMap<>();
+            for (int i = 0; i < downIndex.get(common); i++) {
+                delta = SnapshotDelta.compose(delta, loadReverseDelta(down.get(i)));
+            }
+            for (int i = up.size() - 1; i >= 0; i--) {
+                delta = SnapshotDelta.compose(delta, loadForwardDelta(up.get(i)));
+            }
+            return SnapshotArchive.write(delta);
+        } catch (IOException e) {
+            throw new SQLException("Failed to build delta " + fromCommit + ".." + toCommit, e);
         }
-        return null;
     }
 
     @Override
@@ -126,14 +266,7 @@ public class SQLiteMapRepository implements MapRepository {
             ResultSet rs = ps.executeQuery();
 
             while (rs.next()) {
-                commits.add(new Commit(
-                        rs.getString("id"),
-                        rs.getString("branch"),
-                        rs.getString("parent"),
-                        rs.getLong("timestamp"),
-                        rs.getString("author"),
-                        rs.getString("message")
-                ));
+                commits.add(readCommit(rs));
             }
         }
         return commits;
@@ -152,4 +285,362 @@ public class SQLiteMapRepository implements MapRepository {
         }
         return null;
     }
-}
\ No newline at end of file
+
+    @Override
+    public List<Commit> getCommitsAfter(String commitId, int limit) throws SQLException {
+        long after = 0;
+        if (commitId != null) {
+            // 未知的游标不能退回到开头重放，否则副本会重复写入已有提交
+            try (PreparedStatement ps = conn.prepareStatement("SELECT rowid FROM commits WHERE id = ?")) {
+                ps.setString(1, commitId);
+                ResultSet rs = ps.executeQuery();
+                if (!rs.next()) return null;
+                after = rs.getLong(1);
+            }
+        }
+
+        List<Commit> commits = new ArrayList<>();
+        // rowid即提交写入顺序，副本按同样顺序重放
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT * FROM commits WHERE rowid > ? ORDER BY rowid LIMIT ?")) {
+
+            ps.setLong(1, after);
+            ps.setInt(2, limit);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                commits.add(readCommit(rs));
+            }
+        }
+        return commits;
+    }
+
+    @Override
+    public String getLastCommitId() throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT id FROM commits ORDER BY rowid DESC LIMIT 1");
+            if (rs.next()) {
+                return rs.getString("id");
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<FileChange> getCommitChanges(String commitId) throws SQLException {
+        List<FileChange> changes = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT * FROM commit_changes WHERE commit_id = ? ORDER BY path")) {
+
+            ps.setString(1, commitId);
+            ResultSet rs = ps.executeQuery();
+            while (rs.next()) {
+                byte[] chunks = rs.getBytes("chunks");
+                changes.add(new FileChange(
+                        rs.getString("path"),
+                        ChangeType.valueOf(rs.getString("change_type")),
+                        rs.getLong("bytes_changed"),
+                        chunks != null ? fromBitmap(chunks) : null
+                ));
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public WorldHashTree getTree(String commitId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT data FROM commit_trees WHERE commit_id = ?")) {
+
+            ps.setString(1, commitId);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                return WorldHashTree.parse(rs.getBytes("data"));
+            }
+        }
+
+        // 旧版本写入的提交没有哈希树，首次访问时补算
+        if (getCommit(commitId) == null) return null;
+        try {
+            Map<String, byte[]> chunkTables = new HashMap<>();
+            WorldHashTree tree = WorldHashTree.build(loadFiles(commitId), chunkTables);
+            saveTree(commitId, tree, chunkTables);
+            return tree;
+        } catch (IOException e) {
+            throw new SQLException("Failed to build tree of commit " + commitId, e);
+        }
+    }
+
+    @Override
+    public byte[] getChunkHashes(String regionHash) throws SQLException {
+        return readBlob(regionHash);
+    }
+
+    @Override
+    public List<Commit> getCommitsTouching(String branch, String dimension, int minChunkX, int minChunkZ,
+                                           int maxChunkX, int maxChunkZ, int limit) throws SQLException {
+        List<String> paths = new ArrayList<>();
+        for (int rx = minChunkX >> 5; rx <= maxChunkX >> 5; rx++) {
+            for (int rz = minChunkZ >> 5; rz <= maxChunkZ >> 5; rz++) {
+                paths.add(RegionFile.regionPath(dimension, rx, rz));
+            }
+        }
+
+        // 区域较多时分批查询，避免超出SQLite的参数个数上限；每批最近的limit个提交的并集包含全局最近的limit个
+        Map<String, Commit> commits = new LinkedHashMap<>();
+        for (int from = 0; from < paths.size(); from += MAX_QUERY_PARAMS) {
+            List<String> batch = paths.subList(from, Math.min(from + MAX_QUERY_PARAMS, paths.size()));
+            for (Commit commit : getCommitsTouching(branch, batch, minChunkX, minChunkZ, maxChunkX, maxChunkZ, limit)) {
+                commits.putIfAbsent(commit.getId(), commit);
+            }
+        }
+        List<Commit> result = new ArrayList<>(commits.values());
+        result.sort(Comparator.comparingLong(Commit::getTimestamp).reversed());
+        return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+    }
+
+    private List<Commit> getCommitsTouching(String branch, List<String> paths, int minChunkX, int minChunkZ,
+                                            int maxChunkX, int maxChunkZ, int limit) throws SQLException {
+        // 先按区域文件筛出候选提交，再用区块位图精确判断是否落在范围内
+        Map<String, Commit> commits = new LinkedHashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT c.*, cc.path, cc.chunks FROM commit_changes cc JOIN commits c ON c.id = cc.commit_id " +
+                        "WHERE c.branch = ? AND cc.path IN (" + String.join(",", Collections.nCopies(paths.size(), "?")) + ") " +
+                        "ORDER BY c.timestamp DESC")) {
+
+            ps.setString(1, branch);
+            for (int i = 0; i < paths.size(); i++) {
+                ps.setString(i + 2, paths.get(i));
+            }
+            ResultSet rs = ps.executeQuery();
+
+            while (rs.next() && commits.size() < limit) {
+                String id = rs.getString("id");
+                byte[] chunks = rs.getBytes("chunks");
+                if (commits.containsKey(id) || chunks == null) continue;
+
+                int[] region = RegionFile.regionCoords(rs.getString("path"));
+                BitSet bits = BitSet.valueOf(chunks);
+                for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                    int x = region[0] * 32 + (i & 31);
+                    int z = region[1] * 32 + (i >> 5);
+                    if (x >= minChunkX && x <= maxChunkX && z >= minChunkZ && z <= maxChunkZ) {
+                        commits.put(id, readCommit(rs));
+                        break;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(commits.values());
+    }
+
+    @Override
+    public void addBranchListener(BranchListener listener) {
+        branchListeners.add(listener);
+    }
+
+    // 从最近的关键帧开始依次应用正向差异，最多KEYFRAME_INTERVAL - 1次
+    private Map<String, byte[]> loadFiles(String commitId) throws SQLException, IOException {
+        Deque<String> deltas = new ArrayDeque<>();
+        String id = commitId;
+        Map<String, byte[]> files;
+        while (true) {
+            ChainEntry entry = getChainEntry(id);
+            if (entry == null) {
+                files = SnapshotArchive.read(getLegacySnapshot(id));
+                break;
+            }
+            if (entry.fullBlob != null) {
+                files = unpackSections(SnapshotArchive.read(getBlob(entry.fullBlob)));
+                break;
+            }
+            deltas.push(entry.deltaBlob);
+            id = entry.parent;
+        }
+
+        for (String blob : deltas) {
+            SnapshotDelta.apply(files, SnapshotArchive.read(getBlob(blob)));
+        }
+        return files;
+    }
+
+    // 关键帧中的子区块去重后单独存为数据块（以未压缩内容的哈希为键），各提交和区块间相同的子区块只存一份
+    private static byte[] packKeyframe(Map<String, byte[]> files, Map<String, byte[]> blobs) throws IOException {
+        Map<String, byte[]> sections = new HashMap<>();
+        byte[] keyframe = SnapshotArchive.write(SectionDedup.pack(files, sections));
+        for (Map.Entry<String, byte[]> section : sections.entrySet()) {
+            blobs.put(section.getKey(), RegionFile.compress(section.getValue()));
+        }
+        return keyframe;
+    }
+
+    private Map<String, byte[]> unpackSections(Map<String, byte[]> files) throws IOException {
+        if (!SectionDedup.isPacked(files)) return files;
+        return SectionDedup.unpack(files, hash -> {
+            try {
+                return RegionFile.decompress(readBlob(hash));
+            } catch (SQLException e) {
+                throw new IOException("Failed to read section " + hash, e);
+            }
+        });
+    }
+
+    private Map<String, byte[]> loadForwardDelta(String commitId) throws SQLException, IOException {
+        ChainEntry entry = getChainEntry(commitId);
+        if (entry != null && entry.deltaBlob != null) {
+            return SnapshotArchive.read(getBlob(entry.deltaBlob));
+        }
+        String parent = getParent(commitId);
+        return SnapshotDelta.diff(parent != null ? loadFiles(parent) : new HashMap<>(), loadFiles(commitId));
+    }
+
+    private Map<String, byte[]> loadReverseDelta(String commitId) throws SQLException, IOException {
+        ChainEntry entry = getChainEntry(commitId);
+        if (entry != null && entry.reverseBlob != null) {
+            return SnapshotArchive.read(getBlob(entry.reverseBlob));
+        }
+        String parent = getParent(commitId);
+        return SnapshotDelta.diff(loadFiles(commitId), parent != null ? loadFiles(parent) : new HashMap<>());
+    }
+
+    private void saveTree(String commitId, WorldHashTree tree, Map<String, byte[]> chunkTables) throws SQLException {
+        if (blobStore != null) {
+            blobStore.putAll(chunkTables);
+        } else {
+            for (byte[] table : chunkTables.values()) {
+                putBlob(table);
+            }
+        }
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT OR IGNORE INTO commit_trees(commit_id, root_hash, data) VALUES(?,?,?)")) {
+
+            ps.setString(1, commitId);
+            ps.setString(2, tree.rootHash());
+            ps.setBytes(3, tree.serialize());
+            ps.executeUpdate();
+        }
+    }
+
+    private ChainEntry getChainEntry(String commitId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT c.parent, s.* FROM snapshot_chain s JOIN commits c ON c.id = s.commit_id WHERE s.commit_id = ?")) {
+
+            ps.setString(1, commitId);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                ChainEntry entry = new ChainEntry();
+                entry.parent = rs.getString("parent");
+                entry.depth = rs.getInt("depth");
+                entry.fullBlob = rs.getString("full_blob");
+                entry.deltaBlob = rs.getString("delta_blob");
+                entry.reverseBlob = rs.getString("reverse_blob");
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private String getParent(String commitId) throws SQLException {
+        Commit commit = getCommit(commitId);
+        return commit != null ? commit.getParent() : null;
+    }
+
+    private byte[] getLegacySnapshot(String commitId) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT data FROM snapshots WHERE commit_id = ?")) {
+
+            ps.setString(1, commitId);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                return rs.getBytes("data");
+            }
+        }
+        return null;
+    }
+
+    private byte[] getBlob(String hash) throws SQLException {
+        byte[] data = readBlob(hash);
+        if (data == null) throw new SQLException("Missing blob " + hash);
+        return data;
+    }
+
+    private byte[] readBlob(String hash) throws SQLException {
+        if (blobStore != null) return blobStore.get(hash);
+
+        try (PreparedStatement ps = conn.prepareStatement(
+                "SELECT data FROM blobs WHERE hash = ?")) {
+
+            ps.setString(1, hash);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next()) {
+                return rs.getBytes("data");
+            }
+        }
+        return null;
+    }
+
+    private String putBlob(byte[] data) throws SQLException {
+        String hash = sha1(data);
+        try (PreparedStatement ps = conn.prepareStatement(
+                "INSERT OR IGNORE INTO blobs(hash, data) VALUES(?,?)")) {
+
+            ps.setString(1, hash);
+            ps.setBytes(2, data);
+            ps.executeUpdate();
+        }
+        return hash;
+    }
+
+    private static String addBlob(Map<String, byte[]> blobs, byte[] data) {
+        String hash = sha1(data);
+        blobs.put(hash, data);
+        return hash;
+    }
+
+    private static String sha1(byte[] data) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Commit readCommit(ResultSet rs) throws SQLException {
+        return new Commit(
+                rs.getString("id"),
+                rs.getString("branch"),
+                rs.getString("parent"),
+                rs.getLong("timestamp"),
+                rs.getString("author"),
+                rs.getString("message")
+        );
+    }
+
+    static byte[] toBitmap(List<Integer> chunks) {
+        BitSet bits = new BitSet(RegionFile.CHUNKS);
+        for (int index : chunks) {
+            bits.set(index);
+        }
+        return bits.toByteArray();
+    }
+
+    private static List<Integer> fromBitmap(byte[] bitmap) {
+        List<Integer> chunks = new ArrayList<>();
+        BitSet bits = BitSet.valueOf(bitmap);
+        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+            chunks.add(i);
+        }
+        return chunks;
+    }
+
+    private static class ChainEntry {
+        String parent;
+        int depth;
+        String fullBlob;
+        String deltaBlob;
+        String reverseBlob;
+    }
+}
@@ -4,17 +4,34 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import com.mapvcs.core.MapVCSProtocol;
 import com.mapvcs.core.MapVCSProtocol.*;
+import com.mapvcs.core.RegionFile;
+import com.mapvcs.core.SectionDedup;
+import com.mapvcs.core.SnapshotArchive;
+import com.mapvcs.core.WorldHashTree;
 
 import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class ServerHandler extends SimpleChannelInboundHandler<MapVCSProtocol.BaseMessage> {
     private final MapRepository repo;
     private final File storageDir;
+    private final BranchNotifier notifier;
+    private final BulkTransferManager transfers;
+    private final ExecutorService pushExecutor;
+    private final TransferCache transferCache;
 
-    public ServerHandler(MapRepository repo, File storageDir) {
+    // pushExecutor为null时拒绝推送（只读副本）
+    public ServerHandler(MapRepository repo, File storageDir, BranchNotifier notifier, BulkTransferManager transfers,
+                         ExecutorService pushExecutor, TransferCache transferCache) {
         this.repo = repo;
         this.storageDir = storageDir;
+        this.notifier = notifier;
+        this.transfers = transfers;
+        this.pushExecutor = pushExecutor;
+        this.transferCache = transferCache;
     }
 
     @Override
@@ -23,6 +40,14 @@ public class ServerHandler extends SimpleChannelInboundHandler<MapVCSProtocol.Ba
             handlePull(ctx, (PullRequest) msg);
         } else if (msg instanceof HistoryRequest) {
             handleHistory(ctx, (HistoryRequest) msg);
+        } else if (msg instanceof CheckoutRequest) {
+            handleCheckout(ctx, (CheckoutRequest) msg);
+        } else if (msg instanceof SubscribeRequest) {
+            handleSubscribe(ctx, (SubscribeRequest) msg);
+        } else if (msg instanceof TreeRequest) {
+            handleTree(ctx, (TreeRequest) msg);
+        } else if (msg instanceof PushRequest) {
+            handlePush(ctx, (PushRequest) msg);
         } else {
             ctx.writeAndFlush(new ErrorResponse("Unsupported operation"));
         }
@@ -34,16 +59,41 @@ public class ServerHandler extends SimpleChannelInboundHandler<MapVCSProtocol.Ba
 
             // 如果客户端已经是最新版本
             if (latestCommit != null && latestCommit.equals(request.getSinceCommit())) {
-                ctx.writeAndFlush(new PullResponse(latestCommit, null));
+                ctx.writeAndFlush(new PullResponse(latestCommit, null, 0, false));
                 return;
             }
 
-            // 返回最新快照
-            byte[] snapshot = repo.getSnapshot(latestCommit);
-            ctx.writeAndFlush(new PullResponse(latestCommit, snapshot));
+            // 本地世界与分支头内容一致（例如本地已独立做出相同修改），只需更新提交ID
+            if (latestCommit != null && request.getLocalRoot() != null) {
+                WorldHashTree tree = repo.getTree(latestCommit);
+                if (tree != null && tree.rootHash().equals(request.getLocalRoot())) {
+                    ctx.writeAndFlush(new PullResponse(latestCommit, null, 0, false));
+                    return;
+                }
+            }
         } catch (Exception e) {
             ctx.writeAndFlush(new ErrorResponse("Pull failed: " + e.getMessage()));
+            return;
         }
+
+        // 返回最新快照，获得传输名额后才从仓库读取
+        transfers.submit(ctx.channel(), () -> {
+            try {
+                String latestCommit = repo.getHeadCommit(request.getBranch());
+                // 客户端所在提交在仓库中时只发送差异，修改过的区域文件以区块级补丁传输
+                boolean delta = request.isAcceptDelta() && latestCommit != null && request.getSinceCommit() != null
+                        && repo.getCommit(request.getSinceCommit()) != null;
+                String key = (delta ? "delta " + request.getSinceCommit() : "full") + " " + latestCommit;
+                byte[] snapshot = latestCommit == null ? null : transferCache.get(key + sectionsKey(request.isAcceptSections()),
+                        () -> packSections(delta ? repo.getDelta(request.getSinceCommit(), latestCommit)
+                                : repo.getSnapshot(latestCommit), request.isAcceptSections()));
+                long size = snapshot != null ? snapshot.length : 0;
+                return new BulkTransferManager.Payload(new PullResponse(latestCommit, null, size, delta), snapshot);
+            } catch (Exception e) {
+                ctx.writeAndFlush(new ErrorResponse("Pull failed: " + e.getMessage()));
+                return null;
+            }
+        });
     }
 
     private void handleHistory(ChannelHandlerContext ctx, HistoryRequest request) {
@@ -55,6 +105,116 @@ public class ServerHandler extends SimpleChannelInboundHandler<MapVCSProtocol.Ba
         }
     }
 
+    private void handleCheckout(ChannelHandlerContext ctx, CheckoutRequest request) {
+        transfers.submit(ctx.channel(), () -> {
+            try {
+                // 基准未知时发送的都是同一个完整快照
+                String since = request.getSinceCommit() != null && repo.getCommit(request.getSinceCommit()) != null
+                        ? request.getSinceCommit() : null;
+                byte[] delta = transferCache.get("checkout " + since + " " + request.getCommitId()
+                                + sectionsKey(request.isAcceptSections()),
+                        () -> packSections(repo.getDelta(since, request.getCommitId()), request.isAcceptSections()));
+                if (delta == null) {
+                    ctx.writeAndFlush(new ErrorResponse("Unknown commit: " + request.getCommitId()));
+                    return null;
+                }
+                return new BulkTransferManager.Payload(
+                        new CheckoutResponse(request.getCommitId(), null, delta.length), delta);
+            } catch (Exception e) {
+                ctx.writeAndFlush(new ErrorResponse("Checkout failed: " + e.getMessage()));
+                return null;
+            }
+        });
+    }
+
+    private void handleSubscribe(ChannelHandlerContext ctx, SubscribeRequest request) {
+        try {
+            notifier.subscribe(request.getBranch(), ctx.channel());
+            // 订阅后立即返回当前分支头，避免订阅前发生的更新被漏掉
+            ctx.writeAndFlush(new BranchUpdate(request.getBranch(), repo.getHeadCommit(request.getBranch())));
+        } catch (Exception e) {
+            ctx.writeAndFlush(new ErrorResponse("Subscribe failed: " + e.getMessage()));
+        }
+    }
+
+    private void handlePush(ChannelHandlerContext ctx, PushRequest request) {
+        if (pushExecutor == null) {
+            ctx.writeAndFlush(new ErrorResponse("Push rejected: this server is a read-only replica"));
+            return;
+        }
+        Commit commit = request.getCommit();
+        if (commit == null || commit.getId() == null || commit.getBranch() == null || request.getSnapshot() == null) {
+            ctx.writeAndFlush(new ErrorResponse("Push failed: missing commit or snapshot"));
+            return;
+        }
+
+        pushExecutor.execute(() -> {
+            try {
+                // 返回时提交已随所在的组事务落盘
+                repo.pushCommit(commit, request.getSnapshot());
+                ctx.writeAndFlush(new PushResponse(commit.getId()));
+            } catch (Exception e) {
+                ctx.writeAndFlush(new ErrorResponse("Push failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    private void handleTree(ChannelHandlerContext ctx, TreeRequest request) {
+        try {
+            String commitId = request.getCommitId() != null
+                    ? request.getCommitId() : repo.getHeadCommit(request.getBranch());
+            TreeResponse response = describeTree(repo, commitId, request.getPath());
+            if (response == null) {
+                ctx.writeAndFlush(new ErrorResponse("Unknown commit or path: " + commitId + " " + request.getPath()));
+                return;
+            }
+            ctx.writeAndFlush(response);
+        } catch (Exception e) {
+            ctx.writeAndFlush(new ErrorResponse("Tree request failed: " + e.getMessage()));
+        }
+    }
+
+    // 返回哈希树中的一层，HTTP接口共用
+    static TreeResponse describeTree(MapRepository repo, String commitId, String path) throws SQLException {
+        if (commitId == null) return null;
+        WorldHashTree tree = repo.getTree(commitId);
+        if (tree == null) return null;
+
+        if (path == null || path.isEmpty()) {
+            return new TreeResponse(commitId, "", tree.rootHash(), tree.groupHashes(), null);
+        }
+        String fileHash = tree.get(path);
+        if (fileHash != null) {
+            byte[] chunkHashes = RegionFile.isRegionPath(path) ? repo.getChunkHashes(fileHash) : null;
+            return new TreeResponse(commitId, path, fileHash, null, chunkHashes);
+        }
+        String groupHash = tree.groupHashes().get(path);
+        if (groupHash != null) {
+            return new TreeResponse(commitId, path, groupHash, tree.children(path), null);
+        }
+        return null;
+    }
+
+    private static String sectionsKey(boolean accept) {
+        return accept ? " sections" : "";
+    }
+
+    // 客户端支持时对区域文件做子区块去重后再传输，去重没有变小时按原样发送；结果由transferCache缓存
+    private static byte[] packSections(byte[] snapshot, boolean accept) throws IOException {
+        if (!accept || snapshot == null) return snapshot;
+        byte[] packed = SnapshotArchive.write(SectionDedup.packInline(SnapshotArchive.read(snapshot)));
+        return packed.length < snapshot.length ? packed : snapshot;
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // 发送缓冲区回落到低水位后继续发送剩余数据块
+        if (ctx.channel().isWritable()) {
+            transfers.resume(ctx.channel());
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         cause.printStackTrace();
@@ -0,0 +1,86 @@
+package com.mapvcs.server;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+// 按哈希前缀把数据块分散到多个分片，各分片是独立的文件和锁，可以放在不同磁盘上。
+// 分片数量变化或从单文件迁移后，路由分片中找不到的数据块会依次在其他分片和旧存储中查找
+public class ShardedBlobStore implements BlobStore {
+    // 哈希前缀的十六进制位数，决定路由的粒度
+    private static final int PREFIX_LENGTH = 4;
+
+    private final List<BlobStore> shards;
+    private final List<BlobStore> fallbacks;
+    private final ExecutorService writers;
+
+    public ShardedBlobStore(List<BlobStore> shards, List<BlobStore> fallbacks) {
+        if (shards.isEmpty()) throw new IllegalArgumentException("At least one shard is required");
+        this.shards = new ArrayList<>(shards);
+        this.fallbacks = new ArrayList<>(fallbacks);
+        this.writers = Executors.newFixedThreadPool(shards.size(), r -> {
+            Thread thread = new Thread(r, "mapvcs-blob-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int shardOf(String hash) {
+        return Integer.parseInt(hash.substring(0, PREFIX_LENGTH), 16) % shards.size();
+    }
+
+    @Override
+    public byte[] get(String hash) throws SQLException {
+        int home = shardOf(hash);
+        byte[] data = shards.get(home).get(hash);
+        if (data != null) return data;
+
+        for (int i = 0; i < shards.size(); i++) {
+            if (i == home) continue;
+            data = shards.get(i).get(hash);
+            if (data != null) return data;
+        }
+        for (BlobStore fallback : fallbacks) {
+            data = fallback.get(hash);
+            if (data != null) return data;
+        }
+        return null;
+    }
+
+    // 各分片并行写入，全部落盘后返回
+    @Override
+    public void putAll(Map<String, byte[]> blobs) throws SQLException {
+        Map<Integer, Map<String, byte[]>> byShard = new TreeMap<>();
+        for (Map.Entry<String, byte[]> blob : blobs.entrySet()) {
+            byShard.computeIfAbsent(shardOf(blob.getKey()), k -> new HashMap<>()).put(blob.getKey(), blob.getValue());
+        }
+        if (byShard.size() == 1) {
+            Map.Entry<Integer, Map<String, byte[]>> only = byShard.entrySet().iterator().next();
+            shards.get(only.getKey()).putAll(only.getValue());
+            return;
+        }
+
+        List<Future<Void>> futures = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, byte[]>> entry : byShard.entrySet()) {
+            BlobStore shard = shards.get(entry.getKey());
+            futures.add(writers.submit(() -> {
+                shard.putAll(entry.getValue());
+                return null;
+            }));
+        }
+
+        SQLException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new SQLException("Interrupted while writing blobs", e);
+            } catch (ExecutionException e) {
+                failure = e.getCause() instanceof SQLException
+                        ? (SQLException) e.getCause() : new SQLException("Failed to write blobs", e.getCause());
+            }
+        }
+        if (failure != null) throw failure;
+    }
+}
@@ -0,0 +1,27 @@
+package com.mapvcs.server;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 提交、分支等元数据仍在单个数据库中，数据块按哈希前缀分散到多个分片文件；
+// 元数据库中已有的数据块作为后备继续可读，现有仓库可以直接切换
+public class ShardedMapRepository extends SQLiteMapRepository {
+
+    public ShardedMapRepository(String dbPath, List<String> shardPaths, long groupCommitDelay, int groupCommitMaxBatch) {
+        super(dbPath, groupCommitDelay, groupCommitMaxBatch, openShards(dbPath, shardPaths));
+    }
+
+    private static BlobStore openShards(String dbPath, List<String> shardPaths) {
+        try {
+            List<BlobStore> shards = new ArrayList<>();
+            for (String path : shardPaths) {
+                shards.add(new SQLiteBlobStore(path));
+            }
+            return new ShardedBlobStore(shards, Collections.singletonList(new SQLiteBlobStore(dbPath)));
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
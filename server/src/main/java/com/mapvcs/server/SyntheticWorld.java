@@ -0,0 +1,82 @@
+package com.mapvcs.server;
+
+import com.mapvcs.core.RegionFile;
+import com.mapvcs.core.SnapshotArchive;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+
+import static com.mapvcs.core.MapVCSProtocol.Commit;
+
+// 生成用于负载测试的合成仓库：若干区域文件，每个提交随机修改一部分区块
+public class SyntheticWorld {
+    private final int regions;
+    private final int chunksPerRegion;
+    private final int chunkSize;
+    private final Random random;
+    private final byte[][][] world;
+
+    public SyntheticWorld(int regions, int chunksPerRegion, int chunkSize, long seed) throws IOException {
+        this.regions = regions;
+        this.chunksPerRegion = Math.min(chunksPerRegion, RegionFile.CHUNKS);
+        this.chunkSize = chunkSize;
+        this.random = new Random(seed);
+
+        world = new byte[regions][RegionFile.CHUNKS][];
+        for (int r = 0; r < regions; r++) {
+            for (int i = 0; i < this.chunksPerRegion; i++) {
+                world[r][i] = RegionFile.compress(chunk());
+            }
+        }
+    }
+
+    // 返回按提交顺序排列的提交ID
+    public List<String> populate(MapRepository repo, String branch, int commits) throws IOException, SQLException {
+        List<String> commitIds = new ArrayList<>();
+        String parent = null;
+        for (int c = 0; c < commits; c++) {
+            if (c > 0) mutate();
+
+            String id = String.format("synthetic-%05d", c);
+            repo.saveCommit(new Commit(id, branch, parent, System.currentTimeMillis(), "loadtest",
+                    "Synthetic commit " + c), snapshot());
+            commitIds.add(id);
+            parent = id;
+        }
+        return commitIds;
+    }
+
+    // 随机修改约5%的区块
+    public void mutate() throws IOException {
+        int changes = Math.max(1, regions * chunksPerRegion / 20);
+        for (int n = 0; n < changes; n++) {
+            world[random.nextInt(regions)][random.nextInt(chunksPerRegion)] = RegionFile.compress(chunk());
+        }
+    }
+
+    public byte[] snapshot() throws IOException {
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("level.dat", chunk());
+        for (int r = 0; r < regions; r++) {
+            files.put(RegionFile.regionPath("", r % 8, r / 8), RegionFile.write(world[r]));
+        }
+        return SnapshotArchive.write(files);
+    }
+
+    // 模拟NBT数据：大段重复字节夹杂随机内容，压缩率与真实区块相近
+    private byte[] chunk() {
+        byte[] data = new byte[chunkSize];
+        int pos = 0;
+        while (pos < data.length) {
+            int run = Math.min(data.length - pos, 16 + random.nextInt(256));
+            if (random.nextInt(4) == 0) {
+                for (int i = 0; i < run; i++) data[pos + i] = (byte) random.nextInt();
+            } else {
+                Arrays.fill(data, pos, pos + run, (byte) random.nextInt(16));
+            }
+            pos += run;
+        }
+        return data;
+    }
+}
@@ -0,0 +1,44 @@
+package com.mapvcs.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// 最近发送过的传输载荷（子区块去重之后的快照或差异），按总字节数淘汰最久未用的条目。
+// 提交一旦写入就不再变化，同一对提交之间的载荷可以一直复用；多个客户端拉取同一个分支头时只需计算一次
+public class TransferCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    public interface Loader {
+        byte[] load() throws Exception;
+    }
+
+    // maxBytes为0时不缓存
+    public TransferCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // 返回null的结果不缓存
+    public byte[] get(String key, Loader loader) throws Exception {
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null) return cached;
+        }
+
+        byte[] data = loader.load();
+        if (data == null || data.length > maxBytes) return data;
+        synchronized (this) {
+            byte[] previous = entries.put(key, data);
+            if (previous != null) bytes -= previous.length;
+            bytes += data.length;
+            Iterator<Map.Entry<String, byte[]>> it = entries.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().length;
+                it.remove();
+            }
+        }
+        return data;
+    }
+}